@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/*
+ * Reference sketch for the reliable mode of Arduino Communicator. Every
+ * byte received over the reliable link is sent straight back over it.
+ * Replace onReceived() and call reliableWrite() for your own application.
+ *
+ * The packet format is documented in ReliableLink.java. Packets are COBS
+ * encoded and zero terminated, and end with a CRC-16/CCITT-FALSE.
+ */
+
+const unsigned long BAUD_RATE = 9600;
+
+const uint8_t WINDOW_SIZE = 8;
+const uint8_t MAX_PAYLOAD = 64;
+const uint8_t HEADER_SIZE = 4;
+const uint8_t CRC_SIZE = 2;
+const uint8_t MAX_PACKET = HEADER_SIZE + MAX_PAYLOAD + CRC_SIZE;
+
+const uint8_t TYPE_DATA = 0;
+const uint8_t TYPE_ACK = 1;
+const uint8_t TYPE_RESET = 2;
+const uint8_t TYPE_RESET_ACK = 3;
+
+const long INITIAL_RTO_MS = 250;
+const long MIN_RTO_MS = 20;
+const long MAX_RTO_MS = 4000;
+
+struct SendSlot {
+  uint8_t length;
+  bool sacked;
+  bool retransmitted;
+  bool sackHole;
+  unsigned long sentAt;
+  unsigned long deadline;
+  uint8_t payload[MAX_PAYLOAD];
+};
+
+struct ReceiveSlot {
+  bool used;
+  uint8_t length;
+  uint8_t payload[MAX_PAYLOAD];
+};
+
+// Sequence numbers wrap at 256, like their uint8_t type.
+SendSlot sendSlots[WINDOW_SIZE];
+uint8_t sendBase;
+uint8_t nextSeq;
+long smoothedRtt;
+long rttVariation;
+long rto;
+
+ReceiveSlot receiveSlots[WINDOW_SIZE];
+uint8_t receiveBase;
+bool ackPending;
+
+// Our reset, sent again on every timeout until the app acknowledges it.
+bool resetPending;
+unsigned long resetDeadline;
+bool resetAckPending;
+
+// Encoded packet being received, decoded in place when it is complete.
+uint8_t rxPacket[MAX_PACKET + 2];
+uint8_t rxLength;
+bool rxOverflow;
+
+// Data waiting for room in the send window.
+uint8_t txBuffer[2 * MAX_PAYLOAD];
+uint8_t txLength;
+
+uint16_t crc16(const uint8_t *data, uint8_t length) {
+  uint16_t crc = 0xFFFF;
+  for (uint8_t i = 0; i < length; i++) {
+    crc ^= (uint16_t) data[i] << 8;
+    for (uint8_t bit = 0; bit < 8; bit++) {
+      crc = (crc & 0x8000) ? (crc << 1) ^ 0x1021 : crc << 1;
+    }
+  }
+  return crc;
+}
+
+uint8_t sackBits() {
+  uint8_t sack = 0;
+  for (uint8_t i = 0; i < WINDOW_SIZE - 1; i++) {
+    if (receiveSlots[(uint8_t) (receiveBase + 1 + i) % WINDOW_SIZE].used) {
+      sack |= 1 << i;
+    }
+  }
+  return sack;
+}
+
+void writePacket(uint8_t type, uint8_t seq, const uint8_t *payload, uint8_t length) {
+  uint8_t packet[MAX_PACKET];
+  packet[0] = type;
+  packet[1] = seq;
+  packet[2] = receiveBase;
+  packet[3] = sackBits();
+  if (length > 0) {
+    memcpy(packet + HEADER_SIZE, payload, length);
+  }
+  uint16_t crc = crc16(packet, HEADER_SIZE + length);
+  packet[HEADER_SIZE + length] = crc & 0xFF;
+  packet[HEADER_SIZE + length + 1] = crc >> 8;
+
+  // Packets are shorter than 254 bytes, so no block is ever full.
+  uint8_t encoded[MAX_PACKET + 2];
+  uint8_t codeIndex = 0;
+  uint8_t pos = 1;
+  uint8_t code = 1;
+  for (uint8_t i = 0; i < HEADER_SIZE + length + CRC_SIZE; i++) {
+    if (packet[i] == 0) {
+      encoded[codeIndex] = code;
+      codeIndex = pos++;
+      code = 1;
+    } else {
+      encoded[pos++] = packet[i];
+      code++;
+    }
+  }
+  encoded[codeIndex] = code;
+  encoded[pos++] = 0;
+  Serial.write(encoded, pos);
+  ackPending = false;
+}
+
+/**
+ * Restarts the sequence numbers. Data not yet acknowledged is renumbered
+ * from zero and sent again right away, as the app does.
+ */
+void resetLink() {
+  unsigned long now = millis();
+  uint8_t inFlight = nextSeq - sendBase;
+  // Rotate the slots one step at a time so that sendBase ends up in slot
+  // 0; a second copy of the window would not fit in RAM.
+  for (uint8_t r = 0; r < sendBase % WINDOW_SIZE; r++) {
+    SendSlot first = sendSlots[0];
+    memmove(sendSlots, sendSlots + 1, (WINDOW_SIZE - 1) * sizeof(SendSlot));
+    sendSlots[WINDOW_SIZE - 1] = first;
+  }
+  for (uint8_t i = 0; i < inFlight; i++) {
+    sendSlots[i].sacked = false;
+    sendSlots[i].retransmitted = true;
+    sendSlots[i].sackHole = false;
+    sendSlots[i].sentAt = now;
+    sendSlots[i].deadline = now;
+  }
+  sendBase = 0;
+  nextSeq = inFlight;
+
+  receiveBase = 0;
+  for (uint8_t i = 0; i < WINDOW_SIZE; i++) {
+    receiveSlots[i].used = false;
+  }
+}
+
+void updateRto(long rttSample) {
+  if (smoothedRtt < 0) {
+    smoothedRtt = rttSample;
+    rttVariation = rttSample / 2;
+  } else {
+    long error = rttSample - smoothedRtt;
+    smoothedRtt += error / 8;
+    rttVariation += (abs(error) - rttVariation) / 4;
+  }
+  rto = constrain(smoothedRtt + 4 * rttVariation, MIN_RTO_MS, MAX_RTO_MS);
+}
+
+void handleAck(uint8_t ack, uint8_t sack) {
+  unsigned long now = millis();
+  uint8_t inFlight = nextSeq - sendBase;
+  uint8_t acked = ack - sendBase;
+  if (acked > inFlight) {
+    return;
+  }
+
+  long rttSample = -1;
+  for (uint8_t i = 0; i < acked; i++) {
+    SendSlot &slot = sendSlots[(uint8_t) (sendBase + i) % WINDOW_SIZE];
+    if (!slot.retransmitted) {
+      rttSample = now - slot.sentAt;
+    }
+  }
+  sendBase += acked;
+  inFlight -= acked;
+  if (rttSample >= 0) {
+    updateRto(rttSample);
+  }
+
+  uint8_t sackedUpTo = 0;
+  for (uint8_t i = 0; i < WINDOW_SIZE - 1 && i + 1 < inFlight; i++) {
+    if (sack & (1 << i)) {
+      sendSlots[(uint8_t) (sendBase + 1 + i) % WINDOW_SIZE].sacked = true;
+      sackedUpTo = i + 1;
+    }
+  }
+  long minAge = smoothedRtt >= 0 ? smoothedRtt : rto;
+  for (uint8_t i = 0; i < sackedUpTo; i++) {
+    SendSlot &slot = sendSlots[(uint8_t) (sendBase + i) % WINDOW_SIZE];
+    if (!slot.sacked && !slot.sackHole && (long) (now - slot.sentAt) > minAge) {
+      slot.deadline = now;
+      slot.sackHole = true;
+    }
+  }
+}
+
+void handleData(uint8_t seq, const uint8_t *payload, uint8_t length) {
+  ackPending = true;
+  uint8_t distance = seq - receiveBase;
+  if (distance >= WINDOW_SIZE || length > MAX_PAYLOAD) {
+    return;
+  }
+  ReceiveSlot &slot = receiveSlots[(uint8_t) (receiveBase + distance) % WINDOW_SIZE];
+  if (!slot.used) {
+    memcpy(slot.payload, payload, length);
+    slot.length = length;
+    slot.used = true;
+  }
+}
+
+void handlePacket(const uint8_t *packet, uint8_t length) {
+  if (length < HEADER_SIZE + CRC_SIZE) {
+    return;
+  }
+  uint16_t crc = packet[length - 2] | (uint16_t) packet[length - 1] << 8;
+  if (crc != crc16(packet, length - CRC_SIZE)) {
+    return;
+  }
+  if (packet[0] == TYPE_RESET) {
+    // The app has started over.
+    resetLink();
+    resetAckPending = true;
+    return;
+  }
+  if (packet[0] == TYPE_RESET_ACK) {
+    resetPending = false;
+    return;
+  }
+  if (resetPending) {
+    // Numbered before the app started over.
+    return;
+  }
+  handleAck(packet[2], packet[3]);
+  if (packet[0] == TYPE_DATA) {
+    handleData(packet[1], packet + HEADER_SIZE, length - HEADER_SIZE - CRC_SIZE);
+  }
+}
+
+/**
+ * Decodes the COBS packet in rxPacket in place.
+ * Returns the decoded length, or -1 if the packet is malformed.
+ */
+int decodePacket() {
+  uint8_t in = 0;
+  uint8_t out = 0;
+  while (in < rxLength) {
+    uint8_t code = rxPacket[in++];
+    if (in + code - 1 > rxLength) {
+      return -1;
+    }
+    for (uint8_t i = 1; i < code; i++) {
+      rxPacket[out++] = rxPacket[in++];
+    }
+    if (code < 0xFF && in < rxLength) {
+      rxPacket[out++] = 0;
+    }
+  }
+  return out;
+}
+
+void receiveByte(uint8_t b) {
+  if (b == 0) {
+    if (!rxOverflow && rxLength > 0) {
+      int length = decodePacket();
+      if (length > 0) {
+        handlePacket(rxPacket, length);
+      }
+    }
+    rxLength = 0;
+    rxOverflow = false;
+  } else if (rxLength == sizeof(rxPacket)) {
+    rxOverflow = true;
+  } else {
+    rxPacket[rxLength++] = b;
+  }
+}
+
+/**
+ * Queues data to be sent reliably.
+ * Returns the number of bytes taken, which is less than length when the
+ * window and buffer are full.
+ */
+uint8_t reliableWrite(const uint8_t *data, uint8_t length) {
+  uint8_t count = min(length, (uint8_t) (sizeof(txBuffer) - txLength));
+  memcpy(txBuffer + txLength, data, count);
+  txLength += count;
+  return count;
+}
+
+/**
+ * Called with received data, in order. Returns false if the data cannot
+ * be taken yet, in which case it is offered again later; meanwhile the
+ * window stays closed so the app stops sending.
+ */
+bool onReceived(const uint8_t *data, uint8_t length) {
+  if (sizeof(txBuffer) - txLength < length) {
+    return false;
+  }
+  reliableWrite(data, length);
+  return true;
+}
+
+void deliverReceived() {
+  ReceiveSlot *slot;
+  while ((slot = &receiveSlots[receiveBase % WINDOW_SIZE])->used && onReceived(slot->payload, slot->length)) {
+    slot->used = false;
+    receiveBase++;
+    ackPending = true;
+  }
+}
+
+void sendPending() {
+  unsigned long now = millis();
+  if (resetAckPending) {
+    // Before any data numbered after the reset.
+    writePacket(TYPE_RESET_ACK, 0, NULL, 0);
+    resetAckPending = false;
+  }
+  if (resetPending) {
+    if ((long) (now - resetDeadline) >= 0) {
+      writePacket(TYPE_RESET, 0, NULL, 0);
+      resetDeadline = now + rto;
+      rto = min(rto * 2, MAX_RTO_MS);
+    }
+    return;
+  }
+
+  for (uint8_t seq = sendBase; seq != nextSeq; seq++) {
+    SendSlot &slot = sendSlots[seq % WINDOW_SIZE];
+    if (slot.sacked || (long) (now - slot.deadline) < 0) {
+      continue;
+    }
+    if (seq == sendBase && !slot.sackHole) {
+      rto = min(rto * 2, MAX_RTO_MS);
+    }
+    slot.sentAt = now;
+    slot.deadline = now + rto;
+    slot.retransmitted = true;
+    slot.sackHole = false;
+    writePacket(TYPE_DATA, seq, slot.payload, slot.length);
+  }
+
+  while (txLength > 0 && (uint8_t) (nextSeq - sendBase) < WINDOW_SIZE) {
+    SendSlot &slot = sendSlots[nextSeq % WINDOW_SIZE];
+    slot.length = min(txLength, MAX_PAYLOAD);
+    memcpy(slot.payload, txBuffer, slot.length);
+    txLength -= slot.length;
+    memmove(txBuffer, txBuffer + slot.length, txLength);
+    slot.sacked = false;
+    slot.retransmitted = false;
+    slot.sackHole = false;
+    slot.sentAt = now;
+    slot.deadline = now + rto;
+    writePacket(TYPE_DATA, nextSeq++, slot.payload, slot.length);
+  }
+
+  if (ackPending) {
+    writePacket(TYPE_ACK, 0, NULL, 0);
+  }
+}
+
+void setup() {
+  Serial.begin(BAUD_RATE);
+  smoothedRtt = -1;
+  rto = INITIAL_RTO_MS;
+  // Tell the app to start over too, in case the board was reset.
+  resetPending = true;
+  resetDeadline = millis();
+}
+
+void loop() {
+  while (Serial.available() > 0) {
+    receiveByte(Serial.read());
+  }
+  deliverReceived();
+  sendPending();
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick search for several patterns in one pass. The trie is turned
+ * into a full transition table, so every input byte costs one lookup no
+ * matter how many patterns there are.
+ */
+class AhoCorasickMatcher extends BytePatternMatcher {
+
+    private final int[] mTransitions;
+    // Pattern ending in each state, directly or through its failure links, or -1.
+    private final int[] mOutputs;
+
+    AhoCorasickMatcher(byte[][] patterns) {
+        super(patterns);
+        int maxStates = 1;
+        for (byte[] pattern : patterns) {
+            maxStates += pattern.length;
+        }
+
+        int[] transitions = new int[maxStates * 256];
+        int[] outputs = new int[maxStates];
+        Arrays.fill(transitions, -1);
+        Arrays.fill(outputs, -1);
+        int stateCount = 1;
+        for (int p = 0; p < patterns.length; p++) {
+            int state = 0;
+            for (byte b : patterns[p]) {
+                final int index = state * 256 + (b & 0xFF);
+                if (transitions[index] < 0) {
+                    transitions[index] = stateCount++;
+                }
+                state = transitions[index];
+            }
+            if (outputs[state] < 0) {
+                outputs[state] = p;
+            }
+        }
+
+        // Breadth first, filling in the missing transitions from the
+        // failure state, which is always closer to the root.
+        int[] failures = new int[stateCount];
+        int[] queue = new int[stateCount];
+        int head = 0;
+        int tail = 0;
+        for (int c = 0; c < 256; c++) {
+            final int next = transitions[c];
+            if (next < 0) {
+                transitions[c] = 0;
+            } else {
+                failures[next] = 0;
+                queue[tail++] = next;
+            }
+        }
+        while (head < tail) {
+            final int state = queue[head++];
+            if (outputs[state] < 0) {
+                outputs[state] = outputs[failures[state]];
+            }
+            for (int c = 0; c < 256; c++) {
+                final int index = state * 256 + c;
+                final int next = transitions[index];
+                if (next < 0) {
+                    transitions[index] = transitions[failures[state] * 256 + c];
+                } else {
+                    failures[next] = transitions[failures[state] * 256 + c];
+                    queue[tail++] = next;
+                }
+            }
+        }
+
+        mTransitions = new int[stateCount * 256];
+        System.arraycopy(transitions, 0, mTransitions, 0, mTransitions.length);
+        mOutputs = new int[stateCount];
+        System.arraycopy(outputs, 0, mOutputs, 0, stateCount);
+    }
+
+    @Override
+    int indexOf(ByteBuffer buffer, int start, int end) {
+        int state = 0;
+        for (int pos = start; pos < end; pos++) {
+            state = mTransitions[state * 256 + (buffer.get(pos) & 0xFF)];
+            final int pattern = mOutputs[state];
+            if (pattern >= 0) {
+                mMatchedPattern = pattern;
+                return pos + 1 - mPatterns[pattern].length;
+            }
+        }
+        return -1;
+    }
+}
@@ -16,26 +16,38 @@
 
 package com.primavera.arduino.listener;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 
+import android.app.AlertDialog;
 import android.app.ListActivity;
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
 import android.util.Log;
+import android.util.SparseArray;
+import android.view.Gravity;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.ArrayAdapter;
+import android.widget.EditText;
+import android.widget.FrameLayout;
 import android.widget.ListView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 public class ArduinoCommunicatorActivity extends ListActivity {
@@ -48,21 +60,47 @@ public class ArduinoCommunicatorActivity extends ListActivity {
     private static final int ARDUINO_MEGA_2560_ADK_R3_USB_PRODUCT_ID = 0x44;
     private static final int ARDUINO_MEGA_2560_ADK_USB_PRODUCT_ID = 0x3F;
 
+    private static final String TRANSFER_LOG_FILE_NAME = "transfer_log";
+    private static final int MAX_SEARCH_MATCHES = 1000;
+    private static final int METRICS_INTERVAL_MS = 1000;
+    private static final int PLOT_SAMPLE_CAPACITY = 1 << 16;
+
     private final static String TAG = "ArduinoCommunicatorActivity";
     private final static boolean DEBUG = false;
     
     private Boolean mIsReceiving;
-    private ArrayList<ByteArray> mTransferedDataList = new ArrayList<ByteArray>();
+    private int mLastDeviceId = -1;
+    private TransferLog mTransferedDataList;
     private ArrayAdapter<ByteArray> mDataAdapter;
+    private List<CaptureSearch.Match> mSearchMatches;
+    private int mSearchMatchIndex;
+    private TextView mMetricsView;
+    private final SparseArray<String> mMetricsText = new SparseArray<String>();
+    private LivePlotView mPlotView;
+    private SampleBuffer mSampleBuffer;
+    private int mPlotDeviceId = -1;
+    private final Handler mHandler = new Handler();
+    private final Runnable mMetricsPoller = new Runnable() {
+        @Override
+        public void run() {
+            sendBroadcast(new Intent(ArduinoCommunicatorService.GET_METRICS_INTENT));
+            mHandler.postDelayed(this, METRICS_INTERVAL_MS);
+        }
+    };
 
+    /**
+     * Asks for permission to every Arduino found. The service opens each
+     * one as its permission is granted.
+     */
     private void findDevice() {
         UsbManager usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
-        UsbDevice usbDevice = null;
+        int devicesFound = 0;
         HashMap<String, UsbDevice> usbDeviceList = usbManager.getDeviceList();
         if (DEBUG) Log.d(TAG, "length: " + usbDeviceList.size());
         Iterator<UsbDevice> deviceIterator = usbDeviceList.values().iterator();
-        if (deviceIterator.hasNext()) {
+        while (deviceIterator.hasNext()) {
             UsbDevice tempUsbDevice = deviceIterator.next();
+            UsbDevice usbDevice = null;
 
             // Print device information. If you think your device should be able
             // to communicate with this app, add it to accepted products below.
@@ -105,16 +143,28 @@ public class ArduinoCommunicatorActivity extends ListActivity {
                     break;
                 }
             }
+
+            if (usbDevice != null) {
+                if (DEBUG) Log.i(TAG, "Device found!");
+                devicesFound++;
+                Intent startIntent = new Intent(getApplicationContext(), ArduinoCommunicatorService.class);
+                if (usbManager.hasPermission(usbDevice)) {
+                    // Reattached boards are resumed without asking again.
+                    startIntent.putExtra(UsbManager.EXTRA_DEVICE, usbDevice);
+                    startIntent.putExtra(UsbManager.EXTRA_PERMISSION_GRANTED, true);
+                    startService(startIntent);
+                } else {
+                    // One request code per device, so the pending intents are not merged.
+                    PendingIntent pendingIntent = PendingIntent.getService(getApplicationContext(),
+                            usbDevice.getDeviceId(), startIntent, 0);
+                    usbManager.requestPermission(usbDevice, pendingIntent);
+                }
+            }
         }
 
-        if (usbDevice == null) {
+        if (devicesFound == 0) {
             if (DEBUG) Log.i(TAG, "No device found!");
             Toast.makeText(getBaseContext(), getString(R.string.no_device_found), Toast.LENGTH_LONG).show();
-        } else {
-            if (DEBUG) Log.i(TAG, "Device found!");
-            Intent startIntent = new Intent(getApplicationContext(), ArduinoCommunicatorService.class);
-            PendingIntent pendingIntent = PendingIntent.getService(getApplicationContext(), 0, startIntent, 0);
-            usbManager.requestPermission(usbDevice, pendingIntent);
         }
     }
 
@@ -126,8 +176,13 @@ public class ArduinoCommunicatorActivity extends ListActivity {
         IntentFilter filter = new IntentFilter();
         filter.addAction(ArduinoCommunicatorService.DATA_RECEIVED_INTENT);
         filter.addAction(ArduinoCommunicatorService.DATA_SENT_INTERNAL_INTENT);
+        filter.addAction(ArduinoCommunicatorService.METRICS_INTENT);
+        filter.addAction(ArduinoCommunicatorService.DEVICE_RECONNECTED_INTENT);
+        filter.addAction(ArduinoCommunicatorService.DEVICE_ERROR_INTENT);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         registerReceiver(mReceiver, filter);
 
+        mTransferedDataList = new TransferLog(getCacheDir(), TRANSFER_LOG_FILE_NAME);
         mDataAdapter = new ArrayAdapter<ByteArray>(this, android.R.layout.simple_list_item_1, mTransferedDataList);
         setListAdapter(mDataAdapter);
 
@@ -139,9 +194,7 @@ public class ArduinoCommunicatorActivity extends ListActivity {
         super.onListItemClick(l, v, position, id);
 
         if (DEBUG) Log.i(TAG, "onListItemClick() " + position + " " + id);
-        ByteArray transferedData = mTransferedDataList.get(position);
-        transferedData.toggleCoding();
-        mTransferedDataList.set(position, transferedData);
+        mTransferedDataList.toggleCoding(position);
         mDataAdapter.notifyDataSetChanged();
     }
 
@@ -161,6 +214,8 @@ public class ArduinoCommunicatorActivity extends ListActivity {
         if (DEBUG) Log.d(TAG, "onDestroy()");
         super.onDestroy();
         unregisterReceiver(mReceiver);
+        mHandler.removeCallbacks(mMetricsPoller);
+        mTransferedDataList.close();
     }
 
     @Override
@@ -172,6 +227,24 @@ public class ArduinoCommunicatorActivity extends ListActivity {
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+        case R.id.start_capture:
+            sendBroadcast(new Intent(ArduinoCommunicatorService.START_CAPTURE_INTENT));
+            return true;
+        case R.id.stop_capture:
+            sendBroadcast(new Intent(ArduinoCommunicatorService.STOP_CAPTURE_INTENT));
+            return true;
+        case R.id.search_capture:
+            showSearchDialog();
+            return true;
+        case R.id.find_next:
+            showNextMatch();
+            return true;
+        case R.id.metrics:
+            toggleMetrics();
+            return true;
+        case R.id.plot_samples:
+            showPlotDialog();
+            return true;
         case R.id.help:
             startActivity(new Intent(Intent.ACTION_VIEW,
                     Uri.parse("http://ron.bems.se/arducom/usage.html")));
@@ -185,21 +258,266 @@ public class ArduinoCommunicatorActivity extends ListActivity {
         }
     }
 
+    /**
+     * Shows or hides the metrics of every device on top of the list,
+     * refreshed every second while shown.
+     */
+    private void toggleMetrics() {
+        if (mMetricsView == null) {
+            mMetricsView = new TextView(this);
+            mMetricsView.setBackgroundColor(0xC0000000);
+            mMetricsView.setTextColor(0xFFFFFFFF);
+            mMetricsView.setPadding(8, 8, 8, 8);
+            mMetricsView.setVisibility(View.GONE);
+            addContentView(mMetricsView, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.WRAP_CONTENT,
+                    FrameLayout.LayoutParams.WRAP_CONTENT, Gravity.TOP | Gravity.RIGHT));
+        }
+
+        if (mMetricsView.getVisibility() == View.VISIBLE) {
+            mMetricsView.setVisibility(View.GONE);
+            mHandler.removeCallbacks(mMetricsPoller);
+        } else {
+            mMetricsText.clear();
+            mMetricsView.setText(getString(R.string.metrics));
+            mMetricsView.setVisibility(View.VISIBLE);
+            mMetricsPoller.run();
+        }
+    }
+
+    private void showMetrics(Intent intent) {
+        if (mMetricsView == null || mMetricsView.getVisibility() != View.VISIBLE) {
+            return;
+        }
+        final long[] inLatency = intent.getLongArrayExtra(ArduinoCommunicatorService.IN_LATENCY_EXTRA);
+        final long[] outLatency = intent.getLongArrayExtra(ArduinoCommunicatorService.OUT_LATENCY_EXTRA);
+        final long[] broadcastLatency = intent.getLongArrayExtra(ArduinoCommunicatorService.BROADCAST_LATENCY_EXTRA);
+        final int deviceId = intent.getIntExtra(ArduinoCommunicatorService.DEVICE_ID_EXTRA, -1);
+        mMetricsText.put(deviceId, String.format(getResources().getString(R.string.metrics_format), deviceId,
+                intent.getLongExtra(ArduinoCommunicatorService.RX_BYTES_PER_SECOND_EXTRA, 0),
+                intent.getLongExtra(ArduinoCommunicatorService.TX_BYTES_PER_SECOND_EXTRA, 0),
+                LatencyHistogram.getPercentileMicros(inLatency, 0.5),
+                LatencyHistogram.getPercentileMicros(inLatency, 0.99),
+                LatencyHistogram.getPercentileMicros(outLatency, 0.99),
+                LatencyHistogram.getPercentileMicros(broadcastLatency, 0.99),
+                intent.getIntExtra(ArduinoCommunicatorService.QUEUED_BYTES_EXTRA, 0),
+                intent.getLongExtra(ArduinoCommunicatorService.ZERO_LENGTH_READS_EXTRA, 0),
+                intent.getLongExtra(ArduinoCommunicatorService.SHORT_WRITES_EXTRA, 0),
+                intent.getLongExtra(ArduinoCommunicatorService.OVERRUNS_EXTRA, 0),
+                intent.getLongExtra(ArduinoCommunicatorService.RECEIVER_CPU_MICROS_EXTRA, 0) / 1000,
+                intent.getLongExtra(ArduinoCommunicatorService.DISPATCHER_CPU_MICROS_EXTRA, 0) / 1000,
+                intent.getLongExtra(ArduinoCommunicatorService.SENDER_CPU_MICROS_EXTRA, 0) / 1000));
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < mMetricsText.size(); i++) {
+            if (i > 0) {
+                text.append("\n\n");
+            }
+            text.append(mMetricsText.valueAt(i));
+        }
+        mMetricsView.setText(text);
+    }
+
+    private void showPlotDialog() {
+        final EditText schemaText = new EditText(this);
+        schemaText.setSingleLine();
+        schemaText.setHint(R.string.schema_hint);
+        if (mSampleBuffer != null) {
+            schemaText.setText(mSampleBuffer.getSchema().toString());
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.plot_samples)
+                .setView(schemaText)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        showPlot(schemaText.getText().toString().trim());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * Plots received data as samples of schema over the list, or hides the
+     * plot if schema is empty. Data from the first device sending after
+     * this is plotted.
+     */
+    private void showPlot(String schema) {
+        if (schema.length() == 0) {
+            mSampleBuffer = null;
+            if (mPlotView != null) {
+                mPlotView.setSampleBuffer(null);
+                mPlotView.setVisibility(View.GONE);
+            }
+            return;
+        }
+
+        try {
+            mSampleBuffer = new SampleBuffer(SampleSchema.parse(schema), PLOT_SAMPLE_CAPACITY);
+        } catch (IllegalArgumentException e) {
+            String text = String.format(getResources().getString(R.string.invalid_schema), schema);
+            Toast.makeText(getBaseContext(), text, Toast.LENGTH_LONG).show();
+            return;
+        }
+        restartPlot();
+
+        if (mPlotView == null) {
+            mPlotView = new LivePlotView(this);
+            mPlotView.setBackgroundColor(0xE0000000);
+            addContentView(mPlotView, new FrameLayout.LayoutParams(FrameLayout.LayoutParams.MATCH_PARENT,
+                    FrameLayout.LayoutParams.MATCH_PARENT));
+        }
+        mPlotView.setSampleBuffer(mSampleBuffer);
+        mPlotView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Called when the plotted data is interrupted. A partly received sample
+     * is dropped so that it does not shift the samples that follow, and the
+     * next device to send is plotted, in case the board was replaced.
+     */
+    private void restartPlot() {
+        if (mSampleBuffer != null) {
+            mSampleBuffer.dropPartialSample();
+        }
+        mPlotDeviceId = -1;
+    }
+
+    private void plotReceivedData(int deviceId, byte[] data) {
+        if (mPlotDeviceId < 0) {
+            mPlotDeviceId = deviceId;
+        }
+        if (mPlotDeviceId == deviceId) {
+            mSampleBuffer.add(data, 0, data.length);
+            mPlotView.invalidate();
+        }
+    }
+
+    private void showSearchDialog() {
+        final EditText patternText = new EditText(this);
+        patternText.setSingleLine();
+        patternText.setHint(R.string.search_hint);
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.search_capture)
+                .setView(patternText)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        searchLatestCapture(patternText.getText().toString());
+                    }
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /**
+     * @return directory of the newest capture, or null if there is none
+     */
+    private File findLatestCapture() {
+        final File[] captures = ArduinoCommunicatorService.getCapturesDirectory(this).listFiles();
+        if (captures == null || captures.length == 0) {
+            return null;
+        }
+        Arrays.sort(captures);
+        return captures[captures.length - 1];
+    }
+
+    private void searchLatestCapture(String text) {
+        final File capture = findLatestCapture();
+        if (capture == null) {
+            Toast.makeText(getBaseContext(), getString(R.string.no_capture), Toast.LENGTH_LONG).show();
+            return;
+        }
+        final String[] alternatives = text.split("\\|");
+        int count = 0;
+        for (String alternative : alternatives) {
+            if (alternative.length() > 0) {
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        final byte[][] patterns = new byte[count][];
+        count = 0;
+        for (String alternative : alternatives) {
+            if (alternative.length() > 0) {
+                patterns[count++] = alternative.getBytes();
+            }
+        }
+
+        new AsyncTask<Void, Void, List<CaptureSearch.Match>>() {
+            @Override
+            protected List<CaptureSearch.Match> doInBackground(Void... params) {
+                try {
+                    return new CaptureSearch(capture).search(BytePatternMatcher.create(patterns),
+                            Long.MIN_VALUE, Long.MAX_VALUE, MAX_SEARCH_MATCHES);
+                } catch (IOException e) {
+                    if (DEBUG) Log.e(TAG, "Searching " + capture + " failed", e);
+                    return null;
+                }
+            }
+
+            @Override
+            protected void onPostExecute(List<CaptureSearch.Match> matches) {
+                if (matches == null) {
+                    Toast.makeText(getBaseContext(), getString(R.string.search_failed), Toast.LENGTH_LONG).show();
+                    return;
+                }
+                if (matches.isEmpty()) {
+                    Toast.makeText(getBaseContext(), getString(R.string.no_match), Toast.LENGTH_LONG).show();
+                    return;
+                }
+                String text = String.format(getResources().getString(R.string.matches_found), matches.size());
+                Toast.makeText(getBaseContext(), text, Toast.LENGTH_SHORT).show();
+                mSearchMatches = matches;
+                mSearchMatchIndex = -1;
+                showNextMatch();
+            }
+        }.execute();
+    }
+
+    /**
+     * Scrolls the list to the entry holding the next match, starting over
+     * after the last one.
+     */
+    private void showNextMatch() {
+        if (mSearchMatches == null) {
+            showSearchDialog();
+            return;
+        }
+        mSearchMatchIndex = (mSearchMatchIndex + 1) % mSearchMatches.size();
+        final CaptureSearch.Match match = mSearchMatches.get(mSearchMatchIndex);
+        final int position = mTransferedDataList.findEntry(match.mTimestamp);
+        if (position < 0) {
+            String text = String.format(getResources().getString(R.string.match_not_in_list), match.mTimestamp / 1000000);
+            Toast.makeText(getBaseContext(), text, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        setSelection(position);
+    }
+
     BroadcastReceiver mReceiver = new BroadcastReceiver() {
 
         private void handleTransferedData(Intent intent, boolean receiving) {
-            if (mIsReceiving == null || mIsReceiving != receiving) {
+            final int deviceId = intent.getIntExtra(ArduinoCommunicatorService.DEVICE_ID_EXTRA, -1);
+            if (mIsReceiving == null || mIsReceiving != receiving || mLastDeviceId != deviceId) {
                 mIsReceiving = receiving;
-                mTransferedDataList.add(new ByteArray());
+                mLastDeviceId = deviceId;
+                final long[] timestamps = intent.getLongArrayExtra(ArduinoCommunicatorService.CHUNK_TIMESTAMPS_EXTRA);
+                mTransferedDataList.add(new ByteArray(timestamps != null && timestamps.length > 0
+                        ? timestamps[0] : System.nanoTime()));
             }
 
             final byte[] newTransferedData = intent.getByteArrayExtra(ArduinoCommunicatorService.DATA_EXTRA);
             if (DEBUG) Log.i(TAG, "data: " + newTransferedData.length + " \"" + new String(newTransferedData) + "\"");
 
-            ByteArray transferedData = mTransferedDataList.get(mTransferedDataList.size() - 1);
-            transferedData.add(newTransferedData);
-            mTransferedDataList.set(mTransferedDataList.size() - 1, transferedData);
+            mTransferedDataList.getLast().add(newTransferedData);
             mDataAdapter.notifyDataSetChanged();
+
+            if (receiving && mSampleBuffer != null) {
+                plotReceivedData(deviceId, newTransferedData);
+            }
         }
 
         @Override
@@ -211,6 +529,12 @@ public class ArduinoCommunicatorActivity extends ListActivity {
                 handleTransferedData(intent, true);
             } else if (ArduinoCommunicatorService.DATA_SENT_INTERNAL_INTENT.equals(action)) {
                 handleTransferedData(intent, false);
+            } else if (ArduinoCommunicatorService.METRICS_INTENT.equals(action)) {
+                showMetrics(intent);
+            } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)
+                    || ArduinoCommunicatorService.DEVICE_RECONNECTED_INTENT.equals(action)
+                    || ArduinoCommunicatorService.DEVICE_ERROR_INTENT.equals(action)) {
+                restartPlot();
             }
         }
     };
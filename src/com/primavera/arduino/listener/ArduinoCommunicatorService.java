@@ -16,22 +16,35 @@
 
 package com.primavera.arduino.listener;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
-import android.hardware.usb.UsbDeviceConnection;
-import android.hardware.usb.UsbEndpoint;
-import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.net.Uri;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
+import android.os.Binder;
+import android.os.Bundle;
 import android.os.Message;
+import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
+import android.os.RemoteException;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.Toast;
 
 public class ArduinoCommunicatorService extends Service {
@@ -39,22 +52,306 @@ public class ArduinoCommunicatorService extends Service {
     private final static String TAG = "ArduinoCommunicatorService";
     private final static boolean DEBUG = false;
 
-    private boolean mIsRunning = false;
-    private SenderThread mSenderThread;
+    private static final int DEFAULT_IN_REQUEST_COUNT = 4;
+    private static final int ALL_DEVICES = -1;
+    private static final int SHARED_RING_CAPACITY = 1024 * 1024;
+    private static final String SHARED_RING_FILE_NAME = "shared_data_ring";
+    private static final String CAPTURE_DIRECTORY_NAME = "captures";
+    private static final int DEFAULT_RPC_TIMEOUT_MS = 1000;
+    private static final long RECONNECT_LINGER_MS = 60 * 1000;
+
+    // Messages of the bound interface.
+    final static int MSG_REGISTER_CLIENT = 1;
+    final static int MSG_UNREGISTER_CLIENT = 2;
+    final static int MSG_REGISTERED = 3;
+    final static int MSG_DATA_AVAILABLE = 4;
+    final static int MSG_SEND_DATA = 5;
+    final static int MSG_SUBSCRIBED_DATA = 6;
+    final static int MSG_GET_METRICS = 7;
+    final static int MSG_METRICS = 8;
+    final static int MSG_UPLOAD_FILE = 9;
+    final static String RING_FD_KEY = "ring_fd";
+    final static String WRITE_POSITION_KEY = "write_position";
+    final static String SEQUENCE_KEY = "sequence";
+    final static String UPLOAD_FD_KEY = "upload_fd";
 
-    private volatile UsbDevice mUsbDevice = null;
-    private volatile UsbDeviceConnection mUsbConnection = null;
-    private volatile UsbEndpoint mInUsbEndpoint = null;
-    private volatile UsbEndpoint mOutUsbEndpoint = null;
+    // Connections by device id, only touched on the main thread.
+    private final SparseArray<DeviceConnection> mConnections = new SparseArray<DeviceConnection>();
+    // Connections in mConnections whose device is detached, by device id.
+    private final SparseArray<DetachedDevice> mDetachedDevices = new SparseArray<DetachedDevice>();
+    // Settings for devices that connect later.
+    private int mBatchByteThreshold;
+    private int mBatchMaxLatencyMs;
+    private int mBatchDelimiter = -1;
+    private String mFraming;
+    private boolean mReliable;
+    private volatile SharedDataRing mSharedRing;
+    private final CopyOnWriteArrayList<Messenger> mClients = new CopyOnWriteArrayList<Messenger>();
+    private final SubscriptionRegistry mSubscriptions = new SubscriptionRegistry();
+    private final Object mDispatchLock = new Object();
+    private volatile CaptureWriter mCapture;
+    private volatile boolean mIsReplaying;
+    private Thread mReplayThread;
+    private final Handler mHandler = new Handler();
+    private final HashMap<Long, FileUpload> mUploads = new HashMap<Long, FileUpload>();
+    private final RpcTracker mRpcTracker = new RpcTracker(mHandler, new RpcTracker.Listener() {
+        @Override
+        public void onCallCompleted(RpcTracker.Call call, int status, byte[] body, long roundTripNanos) {
+            broadcastRpcResponse(call.mRequestId, call.mDeviceId, call.mPackage, status, body, roundTripNanos);
+        }
+    });
 
     final static String DATA_RECEIVED_INTENT = "primavera.arduino.intent.action.DATA_RECEIVED";
     final static String SEND_DATA_INTENT = "primavera.arduino.intent.action.SEND_DATA";
+    final static String SET_BATCHING_INTENT = "primavera.arduino.intent.action.SET_BATCHING";
+    final static String SET_FRAMING_INTENT = "primavera.arduino.intent.action.SET_FRAMING";
+    final static String SET_LINE_CODING_INTENT = "primavera.arduino.intent.action.SET_LINE_CODING";
+    final static String LINE_CODING_CHANGED_INTENT = "primavera.arduino.intent.action.LINE_CODING_CHANGED";
+    final static String SEND_REJECTED_INTENT = "primavera.arduino.intent.action.SEND_REJECTED";
+    final static String SEND_QUEUE_LEVEL_INTENT = "primavera.arduino.intent.action.SEND_QUEUE_LEVEL";
+    final static String SUBSCRIBE_INTENT = "primavera.arduino.intent.action.SUBSCRIBE";
+    final static String UNSUBSCRIBE_INTENT = "primavera.arduino.intent.action.UNSUBSCRIBE";
+    final static String SUBSCRIBED_DATA_INTENT = "primavera.arduino.intent.action.SUBSCRIBED_DATA";
+    final static String START_CAPTURE_INTENT = "primavera.arduino.intent.action.START_CAPTURE";
+    final static String STOP_CAPTURE_INTENT = "primavera.arduino.intent.action.STOP_CAPTURE";
+    final static String REPLAY_INTENT = "primavera.arduino.intent.action.REPLAY";
+    final static String STOP_REPLAY_INTENT = "primavera.arduino.intent.action.STOP_REPLAY";
+    final static String GET_METRICS_INTENT = "primavera.arduino.intent.action.GET_METRICS";
+    final static String METRICS_INTENT = "primavera.arduino.intent.action.METRICS";
+    final static String SET_RELIABLE_INTENT = "primavera.arduino.intent.action.SET_RELIABLE";
+    final static String UPLOAD_FILE_INTENT = "primavera.arduino.intent.action.UPLOAD_FILE";
+    final static String CANCEL_UPLOAD_INTENT = "primavera.arduino.intent.action.CANCEL_UPLOAD";
+    final static String UPLOAD_PROGRESS_INTENT = "primavera.arduino.intent.action.UPLOAD_PROGRESS";
+    final static String DEVICE_RECONNECTED_INTENT = "primavera.arduino.intent.action.DEVICE_RECONNECTED";
+    final static String DEVICE_ERROR_INTENT = "primavera.arduino.intent.action.DEVICE_ERROR";
+    final static String RPC_REQUEST_INTENT = "primavera.arduino.intent.action.RPC_REQUEST";
+    final static String RPC_RESPONSE_INTENT = "primavera.arduino.intent.action.RPC_RESPONSE";
     final static String DATA_SENT_INTERNAL_INTENT = "primavera.arduino.internal.intent.action.DATA_SENT";
     final static String DATA_EXTRA = "primavera.arduino.intent.extra.DATA";
+    final static String DEVICE_ID_EXTRA = "primavera.arduino.intent.extra.DEVICE_ID";
+    final static String OVERRUNS_EXTRA = "primavera.arduino.intent.extra.OVERRUNS";
+    final static String CHUNK_OFFSETS_EXTRA = "primavera.arduino.intent.extra.CHUNK_OFFSETS";
+    final static String CHUNK_TIMESTAMPS_EXTRA = "primavera.arduino.intent.extra.CHUNK_TIMESTAMPS";
+    final static String BATCH_BYTES_EXTRA = "primavera.arduino.intent.extra.BATCH_BYTES";
+    final static String BATCH_LATENCY_EXTRA = "primavera.arduino.intent.extra.BATCH_LATENCY";
+    final static String BATCH_DELIMITER_EXTRA = "primavera.arduino.intent.extra.BATCH_DELIMITER";
+    final static String FRAMING_EXTRA = "primavera.arduino.intent.extra.FRAMING";
+    final static String PACKAGE_EXTRA = "primavera.arduino.intent.extra.PACKAGE";
+    final static String SUBSCRIPTION_ID_EXTRA = "primavera.arduino.intent.extra.SUBSCRIPTION_ID";
+    final static String PREFIX_EXTRA = "primavera.arduino.intent.extra.PREFIX";
+    final static String PATTERN_EXTRA = "primavera.arduino.intent.extra.PATTERN";
+    final static String FRAME_TYPE_EXTRA = "primavera.arduino.intent.extra.FRAME_TYPE";
+    final static String IN_REQUEST_COUNT_EXTRA = "primavera.arduino.intent.extra.IN_REQUEST_COUNT";
+    final static String BAUD_RATE_EXTRA = "primavera.arduino.intent.extra.BAUD_RATE";
+    final static String DATA_BITS_EXTRA = "primavera.arduino.intent.extra.DATA_BITS";
+    final static String PARITY_EXTRA = "primavera.arduino.intent.extra.PARITY";
+    final static String STOP_BITS_EXTRA = "primavera.arduino.intent.extra.STOP_BITS";
+    final static String RX_BYTES_PER_SECOND_EXTRA = "primavera.arduino.intent.extra.RX_BYTES_PER_SECOND";
+    final static String TX_BYTES_PER_SECOND_EXTRA = "primavera.arduino.intent.extra.TX_BYTES_PER_SECOND";
+    final static String MAX_BYTES_PER_SECOND_EXTRA = "primavera.arduino.intent.extra.MAX_BYTES_PER_SECOND";
+    final static String EXPRESS_EXTRA = "primavera.arduino.intent.extra.EXPRESS";
+    final static String QUEUE_FULL_EXTRA = "primavera.arduino.intent.extra.QUEUE_FULL";
+    final static String QUEUED_BYTES_EXTRA = "primavera.arduino.intent.extra.QUEUED_BYTES";
+    final static String QUEUE_CAPACITY_EXTRA = "primavera.arduino.intent.extra.QUEUE_CAPACITY";
+    final static String PATH_EXTRA = "primavera.arduino.intent.extra.PATH";
+    final static String SPEED_EXTRA = "primavera.arduino.intent.extra.SPEED";
+    final static String RX_BYTES_EXTRA = "primavera.arduino.intent.extra.RX_BYTES";
+    final static String TX_BYTES_EXTRA = "primavera.arduino.intent.extra.TX_BYTES";
+    final static String ZERO_LENGTH_READS_EXTRA = "primavera.arduino.intent.extra.ZERO_LENGTH_READS";
+    final static String SHORT_WRITES_EXTRA = "primavera.arduino.intent.extra.SHORT_WRITES";
+    final static String FAILED_WRITES_EXTRA = "primavera.arduino.intent.extra.FAILED_WRITES";
+    final static String REQUEUED_BYTES_EXTRA = "primavera.arduino.intent.extra.REQUEUED_BYTES";
+    final static String RING_HIGH_WATER_EXTRA = "primavera.arduino.intent.extra.RING_HIGH_WATER";
+    final static String IN_LATENCY_EXTRA = "primavera.arduino.intent.extra.IN_LATENCY";
+    final static String OUT_LATENCY_EXTRA = "primavera.arduino.intent.extra.OUT_LATENCY";
+    final static String BROADCAST_LATENCY_EXTRA = "primavera.arduino.intent.extra.BROADCAST_LATENCY";
+    final static String RELIABLE_EXTRA = "primavera.arduino.intent.extra.RELIABLE";
+    final static String RETRANSMISSIONS_EXTRA = "primavera.arduino.intent.extra.RETRANSMISSIONS";
+    final static String CORRUPT_PACKETS_EXTRA = "primavera.arduino.intent.extra.CORRUPT_PACKETS";
+    final static String FRAMING_ERRORS_EXTRA = "primavera.arduino.intent.extra.FRAMING_ERRORS";
+    final static String RTO_MICROS_EXTRA = "primavera.arduino.intent.extra.RTO_MICROS";
+    final static String RECONNECT_MICROS_EXTRA = "primavera.arduino.intent.extra.RECONNECT_MICROS";
+    final static String DOWNTIME_MILLIS_EXTRA = "primavera.arduino.intent.extra.DOWNTIME_MILLIS";
+    final static String RECEIVE_ERRORS_EXTRA = "primavera.arduino.intent.extra.RECEIVE_ERRORS";
+    final static String IDLE_TIMEOUTS_EXTRA = "primavera.arduino.intent.extra.IDLE_TIMEOUTS";
+    final static String RECEIVER_CPU_MICROS_EXTRA = "primavera.arduino.intent.extra.RECEIVER_CPU_MICROS";
+    final static String DISPATCHER_CPU_MICROS_EXTRA = "primavera.arduino.intent.extra.DISPATCHER_CPU_MICROS";
+    final static String SENDER_CPU_MICROS_EXTRA = "primavera.arduino.intent.extra.SENDER_CPU_MICROS";
+    final static String REQUEST_ID_EXTRA = "primavera.arduino.intent.extra.REQUEST_ID";
+    final static String TIMEOUT_EXTRA = "primavera.arduino.intent.extra.TIMEOUT";
+    final static String STATUS_EXTRA = "primavera.arduino.intent.extra.STATUS";
+    final static String ROUND_TRIP_MICROS_EXTRA = "primavera.arduino.intent.extra.ROUND_TRIP_MICROS";
+    final static String BYTES_SENT_EXTRA = "primavera.arduino.intent.extra.BYTES_SENT";
+    final static String BYTES_TOTAL_EXTRA = "primavera.arduino.intent.extra.BYTES_TOTAL";
+    final static String BYTES_PER_SECOND_EXTRA = "primavera.arduino.intent.extra.BYTES_PER_SECOND";
+
+    private final Messenger mMessenger = new Messenger(new Handler() {
+        @Override
+        public void handleMessage(Message msg) {
+            if (DEBUG) Log.d(TAG, "bound handleMessage() " + msg.what);
+            switch (msg.what) {
+            case MSG_REGISTER_CLIENT:
+                final Bundle filter = msg.peekData();
+                if (filter != null && (filter.containsKey(PREFIX_EXTRA) || filter.containsKey(PATTERN_EXTRA)
+                        || filter.containsKey(FRAME_TYPE_EXTRA))) {
+                    subscribeClient(msg.replyTo, new SubscriptionFilter(filter.getByteArray(PREFIX_EXTRA),
+                            filter.getByteArray(PATTERN_EXTRA), filter.getInt(FRAME_TYPE_EXTRA, -1)));
+                } else {
+                    registerClient(msg.replyTo);
+                }
+                break;
+            case MSG_UNREGISTER_CLIENT:
+                mClients.remove(msg.replyTo);
+                if (msg.replyTo != null) {
+                    mSubscriptions.unsubscribe(msg.replyTo);
+                }
+                break;
+            case MSG_GET_METRICS:
+                if (msg.replyTo == null) {
+                    break;
+                }
+                for (int i = 0; i < mConnections.size(); i++) {
+                    Message reply = Message.obtain(null, MSG_METRICS);
+                    reply.setData(getMetrics(mConnections.valueAt(i)));
+                    try {
+                        msg.replyTo.send(reply);
+                    } catch (RemoteException e) {
+                        if (DEBUG) Log.i(TAG, "Client died while getting metrics");
+                        break;
+                    }
+                }
+                break;
+            case MSG_UPLOAD_FILE:
+                final ParcelFileDescriptor fileDescriptor = msg.getData().getParcelable(UPLOAD_FD_KEY);
+                if (fileDescriptor != null) {
+                    startUpload(msg.getData().getLong(REQUEST_ID_EXTRA, 0), msg.getData().getInt(DEVICE_ID_EXTRA, ALL_DEVICES),
+                            msg.getData().getString(PACKAGE_EXTRA), fileDescriptor);
+                }
+                break;
+            case MSG_SEND_DATA:
+                final byte[] dataToSend = msg.getData().getByteArray(DATA_EXTRA);
+                if (dataToSend != null) {
+                    queueData(msg.getData().getInt(DEVICE_ID_EXTRA, ALL_DEVICES), dataToSend,
+                            msg.getData().getBoolean(EXPRESS_EXTRA, false));
+                }
+                break;
+            default:
+                super.handleMessage(msg);
+            }
+        }
+    });
 
     @Override
     public IBinder onBind(Intent arg0) {
-        return null;
+        return mMessenger.getBinder();
+    }
+
+    private void registerClient(Messenger client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            if (mSharedRing == null) {
+                mSharedRing = new SharedDataRing(new File(getCacheDir(), SHARED_RING_FILE_NAME), SHARED_RING_CAPACITY);
+            }
+            ParcelFileDescriptor fileDescriptor = mSharedRing.openForClient();
+            Message reply = Message.obtain(null, MSG_REGISTERED);
+            Bundle data = new Bundle();
+            data.putParcelable(RING_FD_KEY, fileDescriptor);
+            data.putLong(WRITE_POSITION_KEY, mSharedRing.getWritePosition());
+            reply.setData(data);
+            client.send(reply);
+            // A client in another process got a copy of the descriptor, but
+            // one in this process got this very object and closes it itself
+            // once the ring is mapped.
+            if (!(client.getBinder() instanceof Binder)) {
+                fileDescriptor.close();
+            }
+            mClients.addIfAbsent(client);
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Sharing data ring failed!", e);
+        } catch (RemoteException e) {
+            if (DEBUG) Log.i(TAG, "Client died while registering");
+        }
+    }
+
+    /**
+     * Bound clients with a filter get the matching frames in messages
+     * instead of access to the shared ring.
+     */
+    private void subscribeClient(final Messenger client, SubscriptionFilter filter) {
+        if (client == null) {
+            return;
+        }
+        mSubscriptions.subscribe(client, filter, new SubscriptionRegistry.Target() {
+            @Override
+            public boolean deliver(byte[] data, int[] chunkOffsets, long[] chunkTimestamps) {
+                Message msg = Message.obtain(null, MSG_SUBSCRIBED_DATA);
+                Bundle bundle = new Bundle();
+                bundle.putByteArray(DATA_EXTRA, data);
+                bundle.putIntArray(CHUNK_OFFSETS_EXTRA, chunkOffsets);
+                bundle.putLongArray(CHUNK_TIMESTAMPS_EXTRA, chunkTimestamps);
+                msg.setData(bundle);
+                try {
+                    client.send(msg);
+                    return true;
+                } catch (RemoteException e) {
+                    if (DEBUG) Log.i(TAG, "Subscribed client died");
+                    return false;
+                }
+            }
+        });
+    }
+
+    /**
+     * Applications subscribing by intent get the matching frames in a
+     * broadcast limited to their own package.
+     */
+    private void subscribePackage(final String packageName, final int subscriptionId, SubscriptionFilter filter) {
+        mSubscriptions.subscribe(packageName + ":" + subscriptionId, filter, new SubscriptionRegistry.Target() {
+            @Override
+            public boolean deliver(byte[] data, int[] chunkOffsets, long[] chunkTimestamps) {
+                Intent intent = new Intent(SUBSCRIBED_DATA_INTENT);
+                intent.setPackage(packageName);
+                intent.putExtra(SUBSCRIPTION_ID_EXTRA, subscriptionId);
+                intent.putExtra(DATA_EXTRA, data);
+                intent.putExtra(CHUNK_OFFSETS_EXTRA, chunkOffsets);
+                intent.putExtra(CHUNK_TIMESTAMPS_EXTRA, chunkTimestamps);
+                sendBroadcast(intent);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Writes every chunk of the pending batch into the shared ring and tells
+     * the bound clients how far they can read.
+     */
+    private void publishToClients(int deviceId, byte[] data, int[] chunkOffsets, long[] chunkTimestamps) {
+        final SharedDataRing sharedRing = mSharedRing;
+        if (sharedRing == null || mClients.isEmpty()) {
+            return;
+        }
+
+        long sequence = 0;
+        for (int i = 0; i < chunkOffsets.length; i++) {
+            final int end = i + 1 < chunkOffsets.length ? chunkOffsets[i + 1] : data.length;
+            sequence = sharedRing.append(deviceId, data, chunkOffsets[i], end - chunkOffsets[i], chunkTimestamps[i]);
+        }
+
+        for (Messenger client : mClients) {
+            Message msg = Message.obtain(null, MSG_DATA_AVAILABLE);
+            Bundle bundle = new Bundle();
+            bundle.putLong(WRITE_POSITION_KEY, sharedRing.getWritePosition());
+            bundle.putLong(SEQUENCE_KEY, sequence);
+            msg.setData(bundle);
+            try {
+                client.send(msg);
+            } catch (RemoteException e) {
+                if (DEBUG) Log.i(TAG, "Client died, unregistering");
+                mClients.remove(client);
+            }
+        }
     }
 
     @Override
@@ -63,6 +360,20 @@ public class ArduinoCommunicatorService extends Service {
         super.onCreate();
         IntentFilter filter = new IntentFilter();
         filter.addAction(SEND_DATA_INTENT);
+        filter.addAction(RPC_REQUEST_INTENT);
+        filter.addAction(UPLOAD_FILE_INTENT);
+        filter.addAction(CANCEL_UPLOAD_INTENT);
+        filter.addAction(SET_BATCHING_INTENT);
+        filter.addAction(SET_FRAMING_INTENT);
+        filter.addAction(SET_LINE_CODING_INTENT);
+        filter.addAction(SET_RELIABLE_INTENT);
+        filter.addAction(SUBSCRIBE_INTENT);
+        filter.addAction(UNSUBSCRIBE_INTENT);
+        filter.addAction(START_CAPTURE_INTENT);
+        filter.addAction(STOP_CAPTURE_INTENT);
+        filter.addAction(STOP_REPLAY_INTENT);
+        filter.addAction(GET_METRICS_INTENT);
+        filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
         filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
         registerReceiver(mReceiver, filter);
     }
@@ -71,32 +382,50 @@ public class ArduinoCommunicatorService extends Service {
     public int onStartCommand(Intent intent, int flags, int startId) {
         if (DEBUG) Log.d(TAG, "onStartCommand() " + intent + " " + flags + " " + startId);
 
-        if (mIsRunning) {
-            if (DEBUG) Log.i(TAG, "Service already running.");
-            return Service.START_REDELIVER_INTENT;
+        if (REPLAY_INTENT.equals(intent.getAction())) {
+            startReplay(intent);
+            return Service.START_NOT_STICKY;
         }
 
-        mIsRunning = true;
+        final long startTime = System.nanoTime();
+        final UsbDevice usbDevice = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if (usbDevice == null || findAttachedConnection(usbDevice) != null || findResumingDevice(usbDevice) != null) {
+            if (DEBUG) Log.i(TAG, "Device already running.");
+            return Service.START_REDELIVER_INTENT;
+        }
 
         if (!intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
             if (DEBUG) Log.i(TAG, "Permission denied");
             Toast.makeText(getBaseContext(), getString(R.string.permission_denied), Toast.LENGTH_LONG).show();
-            stopSelf();
+            stopIfIdle();
             return Service.START_REDELIVER_INTENT;
         }
 
         if (DEBUG) Log.d(TAG, "Permission granted");
-        mUsbDevice = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
-        if (!initDevice()) {
+        final DetachedDevice detachedDevice = findDetachedDevice(usbDevice);
+        if (detachedDevice != null && reconnect(detachedDevice, usbDevice, startTime)) {
+            return Service.START_REDELIVER_INTENT;
+        }
+
+        LineCoding lineCoding = getLineCoding(intent, LineCoding.DEFAULT);
+        if (lineCoding == null) {
+            lineCoding = LineCoding.DEFAULT;
+        }
+        DeviceConnection connection = new DeviceConnection(this, usbDevice,
+                intent.getIntExtra(IN_REQUEST_COUNT_EXTRA, DEFAULT_IN_REQUEST_COUNT), lineCoding);
+        if (!connection.open()) {
             if (DEBUG) Log.e(TAG, "Init of device failed!");
-            stopSelf();
+            stopIfIdle();
             return Service.START_REDELIVER_INTENT;
         }
+        connection.configureBatching(mBatchByteThreshold, mBatchMaxLatencyMs, mBatchDelimiter);
+        connection.setFraming(mFraming);
+        connection.setReliable(mReliable);
+        mConnections.put(connection.getDeviceId(), connection);
 
-        if (DEBUG) Log.i(TAG, "Receiving!");
+        if (DEBUG) Log.i(TAG, "Receiving from device " + connection.getDeviceId());
         Toast.makeText(getBaseContext(), getString(R.string.receiving), Toast.LENGTH_SHORT).show();
-        startReceiverThread();
-        startSenderThread();
+        connection.start();
 
         return Service.START_REDELIVER_INTENT;
     }
@@ -106,76 +435,503 @@ public class ArduinoCommunicatorService extends Service {
         if (DEBUG) Log.i(TAG, "onDestroy()");
         super.onDestroy();
         unregisterReceiver(mReceiver);
-        mUsbDevice = null;
-        if (mUsbConnection != null) {
-            mUsbConnection.close();
+        for (int i = 0; i < mConnections.size(); i++) {
+            mConnections.valueAt(i).close();
+        }
+        mConnections.clear();
+        for (int i = 0; i < mDetachedDevices.size(); i++) {
+            mHandler.removeCallbacks(mDetachedDevices.valueAt(i));
+        }
+        mDetachedDevices.clear();
+        mRpcTracker.clear();
+        for (FileUpload upload : mUploads.values()) {
+            upload.cancel();
         }
+        mUploads.clear();
+        stopCapture();
+        stopReplay();
+        // Clients keep their mapping, the file is only needed to hand out new ones.
+        new File(getCacheDir(), SHARED_RING_FILE_NAME).delete();
     }
 
-    private byte[] getLineEncoding(int baudRate) {
-        final byte[] lineEncodingRequest = { (byte) 0x80, 0x25, 0x00, 0x00, 0x00, 0x00, 0x08 };
-        switch (baudRate) {
-        case 14400:
-            lineEncodingRequest[0] = 0x40;
-            lineEncodingRequest[1] = 0x38;
-            break;
+    /**
+     * A connection whose device was detached. It keeps its settings and
+     * send queue for a while, in case the same device comes back.
+     */
+    private class DetachedDevice implements Runnable {
+        final DeviceConnection mConnection;
+        final long mDetachTime = System.nanoTime();
+        // Set while the device is back but the previous threads still run.
+        UsbDevice mAttachedDevice;
+        long mAttachTime;
 
-        case 19200:
-            lineEncodingRequest[0] = 0x00;
-            lineEncodingRequest[1] = 0x4B;
-            break;
+        DetachedDevice(DeviceConnection connection) {
+            mConnection = connection;
         }
 
-        return lineEncodingRequest;
+        /**
+         * Gives up on the device once it has been gone for too long.
+         */
+        @Override
+        public void run() {
+            if (DEBUG) Log.i(TAG, "Device " + mConnection.getDeviceId() + " did not come back");
+            mDetachedDevices.remove(mConnection.getDeviceId());
+            mConnections.remove(mConnection.getDeviceId());
+            mConnection.close();
+            stopIfIdle();
+        }
     }
 
-    private boolean initDevice() {
-        UsbManager usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
-        mUsbConnection = usbManager.openDevice(mUsbDevice);
-        if (mUsbConnection == null) {
-            if (DEBUG) Log.e(TAG, "Opening USB device failed!");
-            Toast.makeText(getBaseContext(), getString(R.string.opening_device_failed), Toast.LENGTH_LONG).show();
-            return false;
+    private void detach(DeviceConnection connection) {
+        connection.stop();
+        final DetachedDevice detachedDevice = new DetachedDevice(connection);
+        mDetachedDevices.put(connection.getDeviceId(), detachedDevice);
+        mHandler.postDelayed(detachedDevice, RECONNECT_LINGER_MS);
+    }
+
+    /**
+     * @return the running connection to usbDevice, or null
+     */
+    private DeviceConnection findAttachedConnection(UsbDevice usbDevice) {
+        for (int i = 0; i < mConnections.size(); i++) {
+            final DeviceConnection connection = mConnections.valueAt(i);
+            if (mDetachedDevices.get(connection.getDeviceId()) == null
+                    && connection.getUsbDeviceId() == usbDevice.getDeviceId()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the detached device waiting to resume with usbDevice, or null
+     */
+    private DetachedDevice findResumingDevice(UsbDevice usbDevice) {
+        for (int i = 0; i < mDetachedDevices.size(); i++) {
+            final DetachedDevice detachedDevice = mDetachedDevices.valueAt(i);
+            if (detachedDevice.mAttachedDevice != null
+                    && detachedDevice.mAttachedDevice.getDeviceId() == usbDevice.getDeviceId()) {
+                return detachedDevice;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the most recently detached device that usbDevice may be, or null
+     */
+    private DetachedDevice findDetachedDevice(UsbDevice usbDevice) {
+        DetachedDevice latest = null;
+        for (int i = 0; i < mDetachedDevices.size(); i++) {
+            final DetachedDevice detachedDevice = mDetachedDevices.valueAt(i);
+            if (detachedDevice.mAttachedDevice == null && detachedDevice.mConnection.matches(usbDevice)
+                    && (latest == null || detachedDevice.mDetachTime - latest.mDetachTime > 0)) {
+                latest = detachedDevice;
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @param startTime System.nanoTime() when the attached device was noticed
+     * @return false if the device could not be opened
+     */
+    private boolean reconnect(DetachedDevice detachedDevice, UsbDevice usbDevice, long startTime) {
+        final DeviceConnection connection = detachedDevice.mConnection;
+        if (!connection.isStopped()) {
+            // Resumed by onConnectionStopped() instead of waiting here.
+            detachedDevice.mAttachedDevice = usbDevice;
+            detachedDevice.mAttachTime = startTime;
+            return true;
         }
-        UsbInterface usbInterface = mUsbDevice.getInterface(1);
-        if (!mUsbConnection.claimInterface(usbInterface, true)) {
-            if (DEBUG) Log.e(TAG, "Claiming interface failed!");
-            Toast.makeText(getBaseContext(), getString(R.string.claimning_interface_failed), Toast.LENGTH_LONG).show();
-            mUsbConnection.close();
+        if (!connection.resume(usbDevice)) {
+            if (DEBUG) Log.e(TAG, "Reconnecting device " + connection.getDeviceId() + " failed!");
             return false;
         }
+        mHandler.removeCallbacks(detachedDevice);
+        mDetachedDevices.remove(connection.getDeviceId());
 
-        // Arduino USB serial converter setup
-        // Set control line state
-        mUsbConnection.controlTransfer(0x21, 0x22, 0, 0, null, 0, 0);
-        // Set line encoding.
-        mUsbConnection.controlTransfer(0x21, 0x20, 0, 0, getLineEncoding(9600), 7, 0);
+        final long now = System.nanoTime();
+        if (DEBUG) Log.i(TAG, "Device " + connection.getDeviceId() + " reconnected in " + (now - startTime) / 1000 + " us");
+        Toast.makeText(getBaseContext(), getString(R.string.receiving), Toast.LENGTH_SHORT).show();
+        Intent reconnectedIntent = new Intent(DEVICE_RECONNECTED_INTENT);
+        reconnectedIntent.putExtra(DEVICE_ID_EXTRA, connection.getDeviceId());
+        reconnectedIntent.putExtra(RECONNECT_MICROS_EXTRA, (now - startTime) / 1000);
+        reconnectedIntent.putExtra(DOWNTIME_MILLIS_EXTRA, (now - detachedDevice.mDetachTime) / 1000000);
+        sendBroadcast(reconnectedIntent);
+        return true;
+    }
 
-        for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
-            if (usbInterface.getEndpoint(i).getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
-                if (usbInterface.getEndpoint(i).getDirection() == UsbConstants.USB_DIR_IN) {
-                    mInUsbEndpoint = usbInterface.getEndpoint(i);
-                } else if (usbInterface.getEndpoint(i).getDirection() == UsbConstants.USB_DIR_OUT) {
-                    mOutUsbEndpoint = usbInterface.getEndpoint(i);
+    private void stopIfIdle() {
+        if (mConnections.size() == 0 && mReplayThread == null) {
+            stopSelf();
+        }
+    }
+
+    private void startCapture(String path) {
+        stopCapture();
+        File directory;
+        if (path != null) {
+            directory = new File(path);
+        } else {
+            directory = new File(getCapturesDirectory(this),
+                    new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()));
+        }
+        try {
+            mCapture = new CaptureWriter(directory);
+            String text = String.format(getResources().getString(R.string.capturing), directory);
+            Toast.makeText(getBaseContext(), text, Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Starting capture failed!", e);
+            Toast.makeText(getBaseContext(), getString(R.string.capture_failed), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /**
+     * @return directory holding one directory per capture, named so that
+     *         they sort by start time
+     */
+    static File getCapturesDirectory(Context context) {
+        File parent = context.getExternalFilesDir(null);
+        if (parent == null) {
+            parent = context.getFilesDir();
+        }
+        return new File(parent, CAPTURE_DIRECTORY_NAME);
+    }
+
+    private void stopCapture() {
+        final CaptureWriter capture = mCapture;
+        mCapture = null;
+        if (capture != null) {
+            capture.close();
+        }
+    }
+
+    /**
+     * Replays a capture through the same broadcasts as live data. Needs no
+     * device, so the service can be started just for this.
+     */
+    private void startReplay(Intent intent) {
+        final String path = intent.getStringExtra(PATH_EXTRA);
+        if (path == null) {
+            if (DEBUG) Log.i(TAG, "No " + PATH_EXTRA + " extra in intent!");
+            String text = String.format(getResources().getString(R.string.no_extra_in_intent), PATH_EXTRA);
+            Toast.makeText(getBaseContext(), text, Toast.LENGTH_LONG).show();
+            stopIfIdle();
+            return;
+        }
+        if (mReplayThread != null) {
+            if (DEBUG) Log.i(TAG, "Already replaying.");
+            return;
+        }
+
+        final CaptureReader reader;
+        try {
+            reader = new CaptureReader(new File(path));
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Opening capture failed!", e);
+            String text = String.format(getResources().getString(R.string.replay_failed), path);
+            Toast.makeText(getBaseContext(), text, Toast.LENGTH_LONG).show();
+            stopIfIdle();
+            return;
+        }
+
+        final float speed = intent.getFloatExtra(SPEED_EXTRA, 1.0f);
+        mIsReplaying = true;
+        mReplayThread = new Thread("arduino_replay") {
+            public void run() {
+                replay(reader, speed);
+                if (DEBUG) Log.d(TAG, "replay thread stopped.");
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mReplayThread = null;
+                        stopIfIdle();
+                    }
+                });
+            }
+        };
+        mReplayThread.start();
+    }
+
+    /**
+     * Emits the records of a capture at their original pace divided by
+     * speed, or as fast as possible if speed is 0. Records that are due
+     * together are batched like live data.
+     */
+    private void replay(CaptureReader reader, float speed) {
+        final BatchAssembler batch = new BatchAssembler();
+        int batchDirection = CaptureWriter.DIRECTION_RX;
+        int batchDeviceId = 0;
+        long firstTimestamp = 0;
+        long startNanos = 0;
+        try {
+            while (mIsReplaying && reader.next()) {
+                if (startNanos == 0) {
+                    firstTimestamp = reader.getTimestamp();
+                    startNanos = System.nanoTime();
+                }
+                final long due = speed > 0 ? startNanos + (long) ((reader.getTimestamp() - firstTimestamp) / (double) speed)
+                        : System.nanoTime();
+                if (!batch.isEmpty() && (due > System.nanoTime() || reader.getDirection() != batchDirection
+                        || reader.getDeviceId() != batchDeviceId)) {
+                    emitReplayBatch(batch, batchDirection, batchDeviceId);
+                }
+                final long waitMs = (due - System.nanoTime()) / 1000000;
+                if (waitMs > 0) {
+                    Thread.sleep(waitMs);
+                }
+
+                batchDirection = reader.getDirection();
+                batchDeviceId = reader.getDeviceId();
+                if (!batch.appendFrame(reader.getPayload(), 0, reader.getLength(), due)) {
+                    emitReplayBatch(batch, batchDirection, batchDeviceId);
+                    batch.appendFrame(reader.getPayload(), 0, reader.getLength(), due);
                 }
             }
+            if (!batch.isEmpty()) {
+                emitReplayBatch(batch, batchDirection, batchDeviceId);
+            }
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Reading capture failed!", e);
+        } catch (InterruptedException e) {
+            if (DEBUG) Log.i(TAG, "Replay interrupted");
         }
+    }
 
-        if (mInUsbEndpoint == null) {
-            if (DEBUG) Log.e(TAG, "No in endpoint found!");
-            Toast.makeText(getBaseContext(), getString(R.string.no_in_endpoint_found), Toast.LENGTH_LONG).show();
-            mUsbConnection.close();
-            return false;
+    /**
+     * Interrupts the replay thread, so a long pause between records does
+     * not keep it running.
+     */
+    private void stopReplay() {
+        mIsReplaying = false;
+        if (mReplayThread != null) {
+            mReplayThread.interrupt();
         }
+    }
 
-        if (mOutUsbEndpoint == null) {
-            if (DEBUG) Log.e(TAG, "No out endpoint found!");
-            Toast.makeText(getBaseContext(), getString(R.string.no_out_endpoint_found), Toast.LENGTH_LONG).show();
-            mUsbConnection.close();
-            return false;
+    private void emitReplayBatch(BatchAssembler batch, int direction, int deviceId) {
+        if (direction == CaptureWriter.DIRECTION_TX) {
+            onDataSent(deviceId, batch.copyData());
+        } else {
+            onDataReceived(deviceId, batch.copyData(), batch.copyChunkOffsets(), batch.copyChunkTimestamps(), 0);
         }
+        batch.reset();
+    }
 
-        return true;
+    /**
+     * Rates are measured since the previous query. Histograms are arrays of
+     * {@link LatencyHistogram#BUCKET_COUNT} counts.
+     */
+    private Bundle getMetrics(DeviceConnection connection) {
+        final LinkMetrics metrics = connection.getMetrics();
+        final long[] rates = metrics.sampleRates();
+        Bundle bundle = new Bundle();
+        bundle.putInt(DEVICE_ID_EXTRA, connection.getDeviceId());
+        bundle.putLong(RX_BYTES_EXTRA, metrics.mRxBytes.get());
+        bundle.putLong(TX_BYTES_EXTRA, metrics.mTxBytes.get());
+        bundle.putLong(RX_BYTES_PER_SECOND_EXTRA, rates[0]);
+        bundle.putLong(TX_BYTES_PER_SECOND_EXTRA, rates[1]);
+        bundle.putLong(ZERO_LENGTH_READS_EXTRA, metrics.mZeroLengthReads.get());
+        bundle.putLong(SHORT_WRITES_EXTRA, metrics.mShortWrites.get());
+        bundle.putLong(FAILED_WRITES_EXTRA, metrics.mFailedWrites.get());
+        bundle.putLong(REQUEUED_BYTES_EXTRA, metrics.mRequeuedBytes.get());
+        bundle.putLong(RECEIVE_ERRORS_EXTRA, metrics.mReceiveErrors.get());
+        bundle.putLong(IDLE_TIMEOUTS_EXTRA, metrics.mIdleTimeouts.get());
+        bundle.putLong(RECEIVER_CPU_MICROS_EXTRA, metrics.mReceiverCpuNanos.get() / 1000);
+        bundle.putLong(DISPATCHER_CPU_MICROS_EXTRA, metrics.mDispatcherCpuNanos.get() / 1000);
+        bundle.putLong(SENDER_CPU_MICROS_EXTRA, metrics.mSenderCpuNanos.get() / 1000);
+        bundle.putBoolean(RELIABLE_EXTRA, connection.isReliable());
+        bundle.putLong(RETRANSMISSIONS_EXTRA, metrics.mRetransmissions.get());
+        bundle.putLong(CORRUPT_PACKETS_EXTRA, metrics.mCorruptPackets.get());
+        bundle.putLong(FRAMING_ERRORS_EXTRA, metrics.mFramingErrors.get());
+        bundle.putLong(RTO_MICROS_EXTRA, connection.getRtoMicros());
+        bundle.putInt(QUEUED_BYTES_EXTRA, connection.getQueuedBytes());
+        bundle.putLong(OVERRUNS_EXTRA, connection.getOverruns());
+        bundle.putInt(RING_HIGH_WATER_EXTRA, connection.getReceiveRingHighWaterMark());
+        bundle.putLongArray(IN_LATENCY_EXTRA, metrics.mInTransferLatency.getBuckets());
+        bundle.putLongArray(OUT_LATENCY_EXTRA, metrics.mOutTransferLatency.getBuckets());
+        bundle.putLongArray(BROADCAST_LATENCY_EXTRA, metrics.mBroadcastLatency.getBuckets());
+        return bundle;
+    }
+
+    /**
+     * @return the connections an intent applies to: the one named by
+     *         {@link #DEVICE_ID_EXTRA}, or all of them if it is missing
+     */
+    private List<DeviceConnection> getTargetConnections(int deviceId) {
+        List<DeviceConnection> connections = new ArrayList<DeviceConnection>();
+        if (deviceId == ALL_DEVICES) {
+            for (int i = 0; i < mConnections.size(); i++) {
+                connections.add(mConnections.valueAt(i));
+            }
+        } else if (mConnections.get(deviceId) != null) {
+            connections.add(mConnections.get(deviceId));
+        }
+        return connections;
+    }
+
+    /**
+     * @return line coding built from the intent extras, falling back to
+     *         current for missing ones, or null if the values are invalid
+     */
+    private LineCoding getLineCoding(Intent intent, LineCoding current) {
+        try {
+            return new LineCoding(intent.getIntExtra(BAUD_RATE_EXTRA, current.mBaudRate),
+                    intent.getIntExtra(DATA_BITS_EXTRA, current.mDataBits),
+                    intent.getIntExtra(PARITY_EXTRA, current.mParity),
+                    intent.getIntExtra(STOP_BITS_EXTRA, current.mStopBits));
+        } catch (IllegalArgumentException e) {
+            if (DEBUG) Log.e(TAG, "Invalid line coding: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void queueData(int deviceId, byte[] dataToSend, boolean express) {
+        final List<DeviceConnection> connections = getTargetConnections(deviceId);
+        if (connections.isEmpty()) {
+            if (DEBUG) Log.w(TAG, "No device " + deviceId + ", " + dataToSend.length + " bytes rejected");
+            broadcastSendRejected(deviceId, dataToSend, express, 0);
+            return;
+        }
+        for (DeviceConnection connection : connections) {
+            if (!connection.queueData(dataToSend, express)) {
+                broadcastSendRejected(connection.getDeviceId(), dataToSend, express, connection.getQueuedBytes());
+            }
+        }
+    }
+
+    private void broadcastSendRejected(int deviceId, byte[] dataToSend, boolean express, int queuedBytes) {
+        Intent rejectedIntent = new Intent(SEND_REJECTED_INTENT);
+        rejectedIntent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        rejectedIntent.putExtra(DATA_EXTRA, dataToSend);
+        rejectedIntent.putExtra(EXPRESS_EXTRA, express);
+        rejectedIntent.putExtra(QUEUED_BYTES_EXTRA, queuedBytes);
+        sendBroadcast(rejectedIntent);
+    }
+
+    /**
+     * @return the connection named by deviceId, the only connection if
+     *         deviceId is {@link #ALL_DEVICES}, or null
+     */
+    private DeviceConnection getSingleConnection(int deviceId) {
+        if (deviceId == ALL_DEVICES) {
+            return mConnections.size() == 1 ? mConnections.valueAt(0) : null;
+        }
+        return mConnections.get(deviceId);
+    }
+
+    /**
+     * Sends the body as an RPC request frame to the board named by the
+     * intent, or to the only board if just one is connected.
+     */
+    private void sendRpcRequest(long requestId, int deviceId, byte[] body, Intent intent) {
+        final String packageName = intent.getStringExtra(PACKAGE_EXTRA);
+        final DeviceConnection connection = getSingleConnection(deviceId);
+        if (connection != null) {
+            deviceId = connection.getDeviceId();
+        } else {
+            if (DEBUG) Log.w(TAG, "No device " + deviceId + " for request " + requestId);
+            broadcastRpcResponse(requestId, deviceId, packageName, RpcTracker.STATUS_NO_DEVICE, null, 0);
+            return;
+        }
+        // Responses are matched on their header bytes, which only survive
+        // framings that can carry any byte value.
+        final String framing = connection.getFraming();
+        if (!FrameEncoder.isBinarySafe(framing)) {
+            if (DEBUG) Log.w(TAG, "Framing " + framing + " cannot carry request " + requestId);
+            broadcastRpcResponse(requestId, deviceId, packageName, RpcTracker.STATUS_UNSUPPORTED_FRAMING, null, 0);
+            return;
+        }
+
+        final RpcTracker.Call call = new RpcTracker.Call(requestId, deviceId, packageName);
+        final byte[] frame = mRpcTracker.start(call, body, intent.getIntExtra(TIMEOUT_EXTRA, DEFAULT_RPC_TIMEOUT_MS));
+        if (frame == null) {
+            broadcastRpcResponse(requestId, deviceId, packageName, RpcTracker.STATUS_REJECTED, null, 0);
+            return;
+        }
+        final byte[] encodedFrame;
+        try {
+            encodedFrame = FrameEncoder.encode(framing, frame, 0, frame.length);
+        } catch (IllegalArgumentException e) {
+            if (DEBUG) Log.e(TAG, e.getMessage());
+            mRpcTracker.cancel(call);
+            broadcastRpcResponse(requestId, deviceId, packageName, RpcTracker.STATUS_REJECTED, null, 0);
+            return;
+        }
+        if (!connection.queueData(encodedFrame, intent.getBooleanExtra(EXPRESS_EXTRA, false))) {
+            mRpcTracker.cancel(call);
+            broadcastRpcResponse(requestId, deviceId, packageName, RpcTracker.STATUS_REJECTED, null, 0);
+        }
+    }
+
+    private void broadcastRpcResponse(long requestId, int deviceId, String packageName, int status, byte[] body,
+            long roundTripNanos) {
+        Intent responseIntent = new Intent(RPC_RESPONSE_INTENT);
+        if (packageName != null) {
+            responseIntent.setPackage(packageName);
+        }
+        responseIntent.putExtra(REQUEST_ID_EXTRA, requestId);
+        responseIntent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        responseIntent.putExtra(STATUS_EXTRA, status);
+        responseIntent.putExtra(ROUND_TRIP_MICROS_EXTRA, roundTripNanos / 1000);
+        if (body != null) {
+            responseIntent.putExtra(DATA_EXTRA, body);
+        }
+        sendBroadcast(responseIntent);
+    }
+
+    /**
+     * Streams the file to the device. The descriptor is closed when the
+     * upload has finished.
+     */
+    private void startUpload(long requestId, int deviceId, String packageName, ParcelFileDescriptor fileDescriptor) {
+        final DeviceConnection connection = getSingleConnection(deviceId);
+        if (connection == null || mUploads.containsKey(requestId)) {
+            if (DEBUG) Log.w(TAG, "Upload " + requestId + " to device " + deviceId + " not started");
+            try {
+                fileDescriptor.close();
+            } catch (IOException e) {
+                if (DEBUG) Log.w(TAG, "Closing upload " + requestId + " failed: " + e.getMessage());
+            }
+            broadcastUploadProgress(requestId, deviceId, packageName, FileUpload.STATUS_FAILED, 0, -1, 0);
+            return;
+        }
+
+        FileUpload upload = new FileUpload(requestId, packageName, connection, fileDescriptor, new FileUpload.Listener() {
+            @Override
+            public void onUploadProgress(final FileUpload upload, int status, long bytesSent, long bytesPerSecond) {
+                broadcastUploadProgress(upload.getRequestId(), upload.getDeviceId(), upload.getPackage(), status,
+                        bytesSent, upload.getTotalBytes(), bytesPerSecond);
+                if (status != FileUpload.STATUS_RUNNING) {
+                    mHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mUploads.get(upload.getRequestId()) == upload) {
+                                mUploads.remove(upload.getRequestId());
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        mUploads.put(requestId, upload);
+        upload.start();
+    }
+
+    private void broadcastUploadProgress(long requestId, int deviceId, String packageName, int status, long bytesSent,
+            long totalBytes, long bytesPerSecond) {
+        Intent progressIntent = new Intent(UPLOAD_PROGRESS_INTENT);
+        if (packageName != null) {
+            progressIntent.setPackage(packageName);
+        }
+        progressIntent.putExtra(REQUEST_ID_EXTRA, requestId);
+        progressIntent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        progressIntent.putExtra(STATUS_EXTRA, status);
+        progressIntent.putExtra(BYTES_SENT_EXTRA, bytesSent);
+        progressIntent.putExtra(BYTES_TOTAL_EXTRA, totalBytes);
+        progressIntent.putExtra(BYTES_PER_SECOND_EXTRA, bytesPerSecond);
+        sendBroadcast(progressIntent);
     }
 
     BroadcastReceiver mReceiver = new BroadcastReceiver() {
@@ -183,6 +939,7 @@ public class ArduinoCommunicatorService extends Service {
         public void onReceive(Context context, Intent intent) {
             final String action = intent.getAction();
             if (DEBUG) Log.d(TAG, "onReceive() " + action);
+            final int deviceId = intent.getIntExtra(DEVICE_ID_EXTRA, ALL_DEVICES);
 
             if (SEND_DATA_INTENT.equals(action)) {
                 final byte[] dataToSend = intent.getByteArrayExtra(DATA_EXTRA);
@@ -193,74 +950,288 @@ public class ArduinoCommunicatorService extends Service {
                     return;
                 }
 
-                mSenderThread.mHandler.obtainMessage(10, dataToSend).sendToTarget();
+                queueData(deviceId, dataToSend, intent.getBooleanExtra(EXPRESS_EXTRA, false));
+            } else if (UPLOAD_FILE_INTENT.equals(action)) {
+                final long requestId = intent.getLongExtra(REQUEST_ID_EXTRA, 0);
+                final String packageName = intent.getStringExtra(PACKAGE_EXTRA);
+                final Uri uri = intent.getData();
+                final String path = intent.getStringExtra(PATH_EXTRA);
+                if (uri == null && path == null) {
+                    if (DEBUG) Log.i(TAG, "No data or " + PATH_EXTRA + " extra in intent!");
+                    String text = String.format(getResources().getString(R.string.no_extra_in_intent), PATH_EXTRA);
+                    Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+                    return;
+                }
+
+                final ParcelFileDescriptor fileDescriptor;
+                try {
+                    fileDescriptor = uri != null ? getContentResolver().openFileDescriptor(uri, "r")
+                            : ParcelFileDescriptor.open(new File(path), ParcelFileDescriptor.MODE_READ_ONLY);
+                } catch (FileNotFoundException e) {
+                    if (DEBUG) Log.e(TAG, "Opening upload " + requestId + " failed: " + e.getMessage());
+                    broadcastUploadProgress(requestId, deviceId, packageName, FileUpload.STATUS_FAILED, 0, -1, 0);
+                    return;
+                }
+                if (fileDescriptor == null) {
+                    if (DEBUG) Log.e(TAG, "No file for upload " + requestId);
+                    broadcastUploadProgress(requestId, deviceId, packageName, FileUpload.STATUS_FAILED, 0, -1, 0);
+                    return;
+                }
+                startUpload(requestId, deviceId, packageName, fileDescriptor);
+            } else if (CANCEL_UPLOAD_INTENT.equals(action)) {
+                final FileUpload upload = mUploads.get(intent.getLongExtra(REQUEST_ID_EXTRA, 0));
+                if (upload != null) {
+                    upload.cancel();
+                }
+            } else if (RPC_REQUEST_INTENT.equals(action)) {
+                final byte[] body = intent.getByteArrayExtra(DATA_EXTRA);
+                final String missingExtra = body == null ? DATA_EXTRA
+                        : !intent.hasExtra(REQUEST_ID_EXTRA) ? REQUEST_ID_EXTRA : null;
+                if (missingExtra != null) {
+                    if (DEBUG) Log.i(TAG, "No " + missingExtra + " extra in intent!");
+                    String text = String.format(getResources().getString(R.string.no_extra_in_intent), missingExtra);
+                    Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+                    return;
+                }
+
+                sendRpcRequest(intent.getLongExtra(REQUEST_ID_EXTRA, 0), deviceId, body, intent);
+            } else if (SET_BATCHING_INTENT.equals(action)) {
+                final int byteThreshold = intent.getIntExtra(BATCH_BYTES_EXTRA, 0);
+                final int maxLatencyMs = intent.getIntExtra(BATCH_LATENCY_EXTRA, 0);
+                final int delimiter = intent.getIntExtra(BATCH_DELIMITER_EXTRA, -1);
+                if (deviceId == ALL_DEVICES) {
+                    mBatchByteThreshold = byteThreshold;
+                    mBatchMaxLatencyMs = maxLatencyMs;
+                    mBatchDelimiter = delimiter;
+                }
+                for (DeviceConnection connection : getTargetConnections(deviceId)) {
+                    connection.configureBatching(byteThreshold, maxLatencyMs, delimiter);
+                }
+            } else if (SET_FRAMING_INTENT.equals(action)) {
+                final String framing = intent.getStringExtra(FRAMING_EXTRA);
+                try {
+                    FrameDecoder.create(framing);
+                } catch (IllegalArgumentException e) {
+                    if (DEBUG) Log.e(TAG, e.getMessage());
+                    String text = String.format(getResources().getString(R.string.unknown_framing), framing);
+                    Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                if (deviceId == ALL_DEVICES) {
+                    mFraming = framing;
+                }
+                for (DeviceConnection connection : getTargetConnections(deviceId)) {
+                    connection.setFraming(framing);
+                }
+            } else if (SET_RELIABLE_INTENT.equals(action)) {
+                final boolean reliable = intent.getBooleanExtra(RELIABLE_EXTRA, false);
+                if (deviceId == ALL_DEVICES) {
+                    mReliable = reliable;
+                }
+                for (DeviceConnection connection : getTargetConnections(deviceId)) {
+                    connection.setReliable(reliable);
+                }
+            } else if (SUBSCRIBE_INTENT.equals(action) || UNSUBSCRIBE_INTENT.equals(action)) {
+                final String packageName = intent.getStringExtra(PACKAGE_EXTRA);
+                if (packageName == null) {
+                    if (DEBUG) Log.i(TAG, "No " + PACKAGE_EXTRA + " extra in intent!");
+                    String text = String.format(getResources().getString(R.string.no_extra_in_intent), PACKAGE_EXTRA);
+                    Toast.makeText(context, text, Toast.LENGTH_LONG).show();
+                    return;
+                }
+                final int subscriptionId = intent.getIntExtra(SUBSCRIPTION_ID_EXTRA, 0);
+                if (SUBSCRIBE_INTENT.equals(action)) {
+                    subscribePackage(packageName, subscriptionId, new SubscriptionFilter(intent.getByteArrayExtra(PREFIX_EXTRA),
+                            intent.getByteArrayExtra(PATTERN_EXTRA), intent.getIntExtra(FRAME_TYPE_EXTRA, -1)));
+                } else {
+                    mSubscriptions.unsubscribe(packageName + ":" + subscriptionId);
+                }
+            } else if (SET_LINE_CODING_INTENT.equals(action)) {
+                for (DeviceConnection connection : getTargetConnections(deviceId)) {
+                    LineCoding lineCoding = getLineCoding(intent, connection.getLineCoding());
+                    if (lineCoding == null) {
+                        Toast.makeText(context, getString(R.string.invalid_line_coding), Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    connection.changeLineCoding(lineCoding);
+                }
+            } else if (START_CAPTURE_INTENT.equals(action)) {
+                startCapture(intent.getStringExtra(PATH_EXTRA));
+            } else if (STOP_CAPTURE_INTENT.equals(action)) {
+                stopCapture();
+            } else if (STOP_REPLAY_INTENT.equals(action)) {
+                stopReplay();
+            } else if (GET_METRICS_INTENT.equals(action)) {
+                for (DeviceConnection connection : getTargetConnections(deviceId)) {
+                    Intent metricsIntent = new Intent(METRICS_INTENT);
+                    metricsIntent.putExtras(getMetrics(connection));
+                    sendBroadcast(metricsIntent);
+                }
+            } else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+                // Without permission, the activity asks for it and starts
+                // the service, which then reconnects.
+                final long startTime = System.nanoTime();
+                final UsbDevice usbDevice = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                final DetachedDevice detachedDevice = usbDevice != null ? findDetachedDevice(usbDevice) : null;
+                if (detachedDevice != null && findAttachedConnection(usbDevice) == null
+                        && findResumingDevice(usbDevice) == null
+                        && ((UsbManager) getSystemService(Context.USB_SERVICE)).hasPermission(usbDevice)) {
+                    reconnect(detachedDevice, usbDevice, startTime);
+                }
             } else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+                final UsbDevice usbDevice = (UsbDevice) intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                final DeviceConnection connection = usbDevice != null ? findAttachedConnection(usbDevice) : null;
+                if (connection == null) {
+                    final DetachedDevice resumingDevice = usbDevice != null ? findResumingDevice(usbDevice) : null;
+                    if (resumingDevice != null) {
+                        // Gone again before it could be resumed.
+                        resumingDevice.mAttachedDevice = null;
+                    }
+                    return;
+                }
                 Toast.makeText(context, getString(R.string.device_detaches), Toast.LENGTH_LONG).show();
-                mSenderThread.mHandler.sendEmptyMessage(11);
-                stopSelf();
+                detach(connection);
             }
         }
     };
 
-    private void startReceiverThread() {
-        new Thread("arduino_receiver") {
-            public void run() {
-                byte[] inBuffer = new byte[4096];
-                while(mUsbDevice != null ) {
-                    if (DEBUG) Log.d(TAG, "calling bulkTransfer() in");
-                    final int len = mUsbConnection.bulkTransfer(mInUsbEndpoint, inBuffer, inBuffer.length, 0);
-                    if (len > 0) {
-                        Intent intent = new Intent(DATA_RECEIVED_INTENT);
-                        byte[] buffer = new byte[len];
-                        System.arraycopy(inBuffer, 0, buffer, 0, len);
-                        intent.putExtra(DATA_EXTRA, buffer);
-                        sendBroadcast(intent);
-                    } else {
-                        if (DEBUG) Log.i(TAG, "zero data read!");
-                    }
-                }
+    /**
+     * Called on the device's dispatcher thread with every batch it received.
+     */
+    void onDataReceived(int deviceId, byte[] data, int[] chunkOffsets, long[] chunkTimestamps, long overruns) {
+        Intent intent = new Intent(DATA_RECEIVED_INTENT);
+        intent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        intent.putExtra(DATA_EXTRA, data);
+        intent.putExtra(CHUNK_OFFSETS_EXTRA, chunkOffsets);
+        intent.putExtra(CHUNK_TIMESTAMPS_EXTRA, chunkTimestamps);
+        intent.putExtra(OVERRUNS_EXTRA, overruns);
+        sendBroadcast(intent);
+
+        final CaptureWriter capture = mCapture;
+        if (capture != null) {
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                final int end = i + 1 < chunkOffsets.length ? chunkOffsets[i + 1] : data.length;
+                capture.append(CaptureWriter.DIRECTION_RX, deviceId, data, chunkOffsets[i], end - chunkOffsets[i], chunkTimestamps[i]);
+            }
+        }
 
-                if (DEBUG) Log.d(TAG, "receiver thread stopped.");
+        // The shared ring and the subscription scratch buffers take one
+        // writer at a time, while every device has its own dispatcher.
+        synchronized (mDispatchLock) {
+            publishToClients(deviceId, data, chunkOffsets, chunkTimestamps);
+            if (!mSubscriptions.isEmpty()) {
+                mSubscriptions.dispatch(data, chunkOffsets, chunkTimestamps);
             }
-        }.start();
+        }
     }
 
-    private void startSenderThread() {
-        mSenderThread = new SenderThread("arduino_sender");
-        mSenderThread.start();
+    /**
+     * Called on the device's dispatcher thread with every decoded frame,
+     * before it is batched.
+     *
+     * @return true if the frame answered an RPC request and was consumed
+     */
+    boolean onFrameReceived(int deviceId, byte[] buffer, int offset, int length, long timestampNanos) {
+        return mRpcTracker.onFrame(deviceId, buffer, offset, length, timestampNanos);
     }
 
-    private class SenderThread extends Thread {
-        public Handler mHandler;
+    /**
+     * Called on the device's sender thread with the data it has written.
+     */
+    void onDataSent(int deviceId, byte[] sentData) {
+        final long timestamp = System.nanoTime();
+        Intent sendIntent = new Intent(DATA_SENT_INTERNAL_INTENT);
+        sendIntent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        sendIntent.putExtra(DATA_EXTRA, sentData);
+        sendIntent.putExtra(CHUNK_TIMESTAMPS_EXTRA, new long[] { timestamp });
+        sendBroadcast(sendIntent);
 
-        public SenderThread(String string) {
-            super(string);
+        final CaptureWriter capture = mCapture;
+        if (capture != null) {
+            capture.append(CaptureWriter.DIRECTION_TX, deviceId, sentData, 0, sentData.length, timestamp);
         }
+    }
 
-        public void run() {
+    void onSendQueueLevelChanged(int deviceId, boolean aboveHighWatermark, int queuedBytes, int capacity) {
+        Intent intent = new Intent(SEND_QUEUE_LEVEL_INTENT);
+        intent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        intent.putExtra(QUEUE_FULL_EXTRA, aboveHighWatermark);
+        intent.putExtra(QUEUED_BYTES_EXTRA, queuedBytes);
+        intent.putExtra(QUEUE_CAPACITY_EXTRA, capacity);
+        sendBroadcast(intent);
+    }
 
-            Looper.prepare();
-
-            mHandler = new Handler() {
-                public void handleMessage(Message msg) {
-                    if (DEBUG) Log.i(TAG, "handleMessage() " + msg.what);
-                    if (msg.what == 10) {
-                        final byte[] dataToSend = (byte[]) msg.obj;
-
-                        if (DEBUG) Log.d(TAG, "calling bulkTransfer() out");
-                        final int len = mUsbConnection.bulkTransfer(mOutUsbEndpoint, dataToSend, dataToSend.length, 0);
-                        if (DEBUG) Log.d(TAG, len + " of " + dataToSend.length + " sent.");
-                        Intent sendIntent = new Intent(DATA_SENT_INTERNAL_INTENT);
-                        sendIntent.putExtra(DATA_EXTRA, dataToSend);
-                        sendBroadcast(sendIntent);
-                    } else if (msg.what == 11) {
-                        Looper.myLooper().quit();
-                    }
+    /**
+     * Called on the last thread of a stopped connection to finish. Resumes
+     * the connection if its device was attached again meanwhile.
+     */
+    void onConnectionStopped(final DeviceConnection connection) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final DetachedDevice detachedDevice = mDetachedDevices.get(connection.getDeviceId());
+                if (detachedDevice == null || detachedDevice.mConnection != connection
+                        || detachedDevice.mAttachedDevice == null) {
+                    return;
                 }
-            };
+                final UsbDevice usbDevice = detachedDevice.mAttachedDevice;
+                detachedDevice.mAttachedDevice = null;
+                // Failures are shown by DeviceConnection.open(), and the
+                // connection stays parked for another attach.
+                reconnect(detachedDevice, usbDevice, detachedDevice.mAttachTime);
+            }
+        });
+    }
 
-            Looper.loop();
-            if (DEBUG) Log.i(TAG, "sender thread stopped");
-        }
+    /**
+     * Called on the device's receiver thread when IN transfers keep
+     * failing. The device is closed as if it had been detached.
+     */
+    void onReceiveFailed(int deviceId) {
+        onDeviceFailed(deviceId, R.string.device_failed);
+    }
+
+    /**
+     * Called on the device's sender thread when OUT transfers keep failing.
+     * The device is closed as if it had been detached.
+     */
+    void onSendFailed(int deviceId) {
+        onDeviceFailed(deviceId, R.string.sending_failed);
+    }
+
+    private void onDeviceFailed(final int deviceId, final int messageId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final DeviceConnection connection = mConnections.get(deviceId);
+                if (connection == null || mDetachedDevices.get(deviceId) != null) {
+                    return;
+                }
+                Toast.makeText(getBaseContext(), getString(messageId), Toast.LENGTH_LONG).show();
+                // Usually the device is about to be detached, so wait for
+                // it to come back just the same.
+                detach(connection);
+
+                Intent errorIntent = new Intent(DEVICE_ERROR_INTENT);
+                errorIntent.putExtra(DEVICE_ID_EXTRA, deviceId);
+                errorIntent.putExtra(RECEIVE_ERRORS_EXTRA, connection.getMetrics().mReceiveErrors.get());
+                errorIntent.putExtra(FAILED_WRITES_EXTRA, connection.getMetrics().mFailedWrites.get());
+                sendBroadcast(errorIntent);
+                stopIfIdle();
+            }
+        });
+    }
+
+    void onLineCodingChanged(int deviceId, LineCoding lineCoding, long rxBytesPerSecond, long txBytesPerSecond) {
+        Intent changedIntent = new Intent(LINE_CODING_CHANGED_INTENT);
+        changedIntent.putExtra(DEVICE_ID_EXTRA, deviceId);
+        changedIntent.putExtra(BAUD_RATE_EXTRA, lineCoding.mBaudRate);
+        changedIntent.putExtra(DATA_BITS_EXTRA, lineCoding.mDataBits);
+        changedIntent.putExtra(PARITY_EXTRA, lineCoding.mParity);
+        changedIntent.putExtra(STOP_BITS_EXTRA, lineCoding.mStopBits);
+        changedIntent.putExtra(RX_BYTES_PER_SECOND_EXTRA, rxBytesPerSecond);
+        changedIntent.putExtra(TX_BYTES_PER_SECOND_EXTRA, txBytesPerSecond);
+        changedIntent.putExtra(MAX_BYTES_PER_SECOND_EXTRA, lineCoding.getMaxBytesPerSecond());
+        sendBroadcast(changedIntent);
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Coalesces received chunks into batches so that one broadcast can carry many
+ * USB transfers. A batch is due when it reaches the byte threshold, when its
+ * oldest chunk is older than the max latency, or when it ends with the
+ * delimiter. With everything disabled each chunk is its own batch.
+ *
+ * Only the dispatcher thread may append and flush. The limits may be changed
+ * from any thread and take effect on the next check.
+ */
+class BatchAssembler {
+
+    static final int MAX_BATCH_BYTES = 64 * 1024;
+    static final int MAX_BATCH_CHUNKS = 1024;
+
+    private final byte[] mBuffer = new byte[MAX_BATCH_BYTES];
+    private final int[] mChunkOffsets = new int[MAX_BATCH_CHUNKS];
+    private final long[] mChunkTimestamps = new long[MAX_BATCH_CHUNKS];
+    private int mLength;
+    private int mChunkCount;
+    private boolean mEndsWithDelimiter;
+
+    private volatile int mByteThreshold;
+    private volatile long mMaxLatencyNanos;
+    private volatile int mDelimiter = -1;
+
+    /**
+     * @param byteThreshold flush when this many bytes are pending, 0 to disable
+     * @param maxLatencyMs flush when the oldest pending chunk is this old, 0 to disable
+     * @param delimiter flush after this byte value, -1 to disable
+     */
+    void configure(int byteThreshold, int maxLatencyMs, int delimiter) {
+        mByteThreshold = Math.max(0, Math.min(byteThreshold, MAX_BATCH_BYTES));
+        mMaxLatencyNanos = Math.max(0, maxLatencyMs) * 1000000L;
+        mDelimiter = delimiter < 0 ? -1 : delimiter & 0xFF;
+    }
+
+    private boolean isBatching() {
+        return mByteThreshold > 0 || mMaxLatencyNanos > 0 || mDelimiter >= 0;
+    }
+
+    boolean isEmpty() {
+        return mChunkCount == 0;
+    }
+
+    /**
+     * Appends as much of src as fits in the current batch, stopping right
+     * after the delimiter if one is found. The appended bytes form one chunk.
+     *
+     * @return number of bytes consumed, 0 if the batch must be flushed first
+     */
+    int append(byte[] src, int off, int len, long timestampNanos) {
+        if (mChunkCount == MAX_BATCH_CHUNKS) {
+            return 0;
+        }
+
+        int count = Math.min(len, mBuffer.length - mLength);
+        final int delimiter = mDelimiter;
+        mEndsWithDelimiter = false;
+        if (delimiter >= 0) {
+            for (int i = 0; i < count; i++) {
+                if ((src[off + i] & 0xFF) == delimiter) {
+                    count = i + 1;
+                    mEndsWithDelimiter = true;
+                    break;
+                }
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+
+        mChunkOffsets[mChunkCount] = mLength;
+        mChunkTimestamps[mChunkCount] = timestampNanos;
+        mChunkCount++;
+        System.arraycopy(src, off, mBuffer, mLength, count);
+        mLength += count;
+        return count;
+    }
+
+    /**
+     * Appends a decoded frame as one chunk. Frames are never split and the
+     * delimiter is not looked for.
+     *
+     * @return false if the frame does not fit, the batch must be flushed first
+     */
+    boolean appendFrame(byte[] src, int off, int len, long timestampNanos) {
+        if (mChunkCount == MAX_BATCH_CHUNKS || len > mBuffer.length - mLength) {
+            return false;
+        }
+
+        mChunkOffsets[mChunkCount] = mLength;
+        mChunkTimestamps[mChunkCount] = timestampNanos;
+        mChunkCount++;
+        System.arraycopy(src, off, mBuffer, mLength, len);
+        mLength += len;
+        mEndsWithDelimiter = false;
+        return true;
+    }
+
+    /**
+     * @return true if the pending batch should be broadcast now
+     */
+    boolean isFlushDue(long nowNanos) {
+        if (mChunkCount == 0) {
+            return false;
+        }
+        if (!isBatching() || mEndsWithDelimiter
+                || mLength == mBuffer.length || mChunkCount == MAX_BATCH_CHUNKS) {
+            return true;
+        }
+        final int byteThreshold = mByteThreshold;
+        if (byteThreshold > 0 && mLength >= byteThreshold) {
+            return true;
+        }
+        final long maxLatencyNanos = mMaxLatencyNanos;
+        return maxLatencyNanos > 0 && nowNanos - mChunkTimestamps[0] >= maxLatencyNanos;
+    }
+
+    /**
+     * @return how long the dispatcher may sleep before the latency deadline
+     *         of the pending batch, or defaultMs if there is no deadline
+     */
+    long millisUntilDeadline(long nowNanos, long defaultMs) {
+        final long maxLatencyNanos = mMaxLatencyNanos;
+        if (mChunkCount == 0 || maxLatencyNanos == 0) {
+            return defaultMs;
+        }
+        final long remainingNanos = mChunkTimestamps[0] + maxLatencyNanos - nowNanos;
+        return Math.max(1, Math.min(defaultMs, (remainingNanos + 999999) / 1000000));
+    }
+
+    byte[] copyData() {
+        byte[] data = new byte[mLength];
+        System.arraycopy(mBuffer, 0, data, 0, mLength);
+        return data;
+    }
+
+    /**
+     * @return start offset of every chunk within {@link #copyData()}
+     */
+    int[] copyChunkOffsets() {
+        int[] offsets = new int[mChunkCount];
+        System.arraycopy(mChunkOffsets, 0, offsets, 0, mChunkCount);
+        return offsets;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} at which every chunk was received
+     */
+    long[] copyChunkTimestamps() {
+        long[] timestamps = new long[mChunkCount];
+        System.arraycopy(mChunkTimestamps, 0, timestamps, 0, mChunkCount);
+        return timestamps;
+    }
+
+    void reset() {
+        mLength = 0;
+        mChunkCount = 0;
+        mEndsWithDelimiter = false;
+    }
+}
@@ -16,11 +16,47 @@
 
 package com.primavera.arduino.listener;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Received or sent bytes shown as one list entry. The hex and ascii forms
+ * are rendered incrementally, so adding bytes only formats the new ones and
+ * toggling the coding does not format anything again.
+ */
 class ByteArray {
 
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    private static final char[] ASCII = new char[256];
+
+    static {
+        for (int i = 0; i < ASCII.length; i++) {
+            ASCII[i] = i < 128 && Character.isLetterOrDigit(i) ? (char) i : '.';
+        }
+    }
+
     private byte[] mByteArray = new byte[1];
     private int mUsedLength;
     private boolean mShowInAscii;
+    private final long mTimestamp;
+
+    private char[] mHexChars = new char[0];
+    private int mHexRenderedLength;
+    private char[] mAsciiChars = new char[0];
+    private int mAsciiRenderedLength;
+    private String mString;
+
+    /**
+     * @param timestampNanos System.nanoTime() of the first data in the entry
+     */
+    ByteArray(long timestampNanos) {
+        mTimestamp = timestampNanos;
+    }
+
+    long getTimestamp() {
+        return mTimestamp;
+    }
 
     void add(byte[] newArray) {
         // Make sure we have enough space to store byte array.
@@ -33,31 +69,93 @@ class ByteArray {
         // Add byte array.
         System.arraycopy(newArray, 0, mByteArray, mUsedLength, newArray.length);
         mUsedLength += newArray.length;
+        mString = null;
     }
 
     void toggleCoding() {
         mShowInAscii = !mShowInAscii;
+        mString = null;
+    }
+
+    boolean isShownInAscii() {
+        return mShowInAscii;
+    }
+
+    /**
+     * Frees the spare capacity and rendered forms once no more data will
+     * be added. They are rebuilt when the entry is shown again.
+     */
+    void trim() {
+        // At least one byte, so that add() can still double it.
+        if (mByteArray.length > Math.max(1, mUsedLength)) {
+            byte[] tmpArray = new byte[Math.max(1, mUsedLength)];
+            System.arraycopy(mByteArray, 0, tmpArray, 0, mUsedLength);
+            mByteArray = tmpArray;
+        }
+        mHexChars = new char[0];
+        mHexRenderedLength = 0;
+        mAsciiChars = new char[0];
+        mAsciiRenderedLength = 0;
+        mString = null;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        out.writeInt(mUsedLength);
+        out.writeBoolean(mShowInAscii);
+        out.writeLong(mTimestamp);
+        out.write(mByteArray, 0, mUsedLength);
+    }
+
+    static ByteArray readFrom(DataInput in) throws IOException {
+        final int usedLength = in.readInt();
+        final boolean showInAscii = in.readBoolean();
+        ByteArray byteArray = new ByteArray(in.readLong());
+        byteArray.mUsedLength = usedLength;
+        byteArray.mShowInAscii = showInAscii;
+        byteArray.mByteArray = new byte[Math.max(1, byteArray.mUsedLength)];
+        in.readFully(byteArray.mByteArray, 0, byteArray.mUsedLength);
+        return byteArray;
+    }
+
+    private void renderHex() {
+        if (mHexChars.length < mUsedLength * 3) {
+            char[] tmpChars = new char[mByteArray.length * 3];
+            System.arraycopy(mHexChars, 0, tmpChars, 0, mHexRenderedLength * 3);
+            mHexChars = tmpChars;
+        }
+        int pos = mHexRenderedLength * 3;
+        for (int i = mHexRenderedLength; i < mUsedLength; i++) {
+            final int b = mByteArray[i] & 0xFF;
+            mHexChars[pos++] = HEX_DIGITS[b >>> 4];
+            mHexChars[pos++] = HEX_DIGITS[b & 0x0F];
+            mHexChars[pos++] = ' ';
+        }
+        mHexRenderedLength = mUsedLength;
+    }
+
+    private void renderAscii() {
+        if (mAsciiChars.length < mUsedLength) {
+            char[] tmpChars = new char[mByteArray.length];
+            System.arraycopy(mAsciiChars, 0, tmpChars, 0, mAsciiRenderedLength);
+            mAsciiChars = tmpChars;
+        }
+        for (int i = mAsciiRenderedLength; i < mUsedLength; i++) {
+            mAsciiChars[i] = ASCII[mByteArray[i] & 0xFF];
+        }
+        mAsciiRenderedLength = mUsedLength;
     }
 
     @Override
     public String toString() {
-        StringBuilder hexStr = new StringBuilder();
-
-        if (mShowInAscii) {
-            for (int i = 0; i < mUsedLength; i++) {
-                if (Character.isLetterOrDigit(mByteArray[i])) {
-                    hexStr.append(new String(new byte[] {mByteArray[i]}));
-                } else {
-                    hexStr.append('.');
-                }
-            }
-        } else {
-            for (int i = 0; i < mUsedLength; i++) {
-                hexStr.append(String.format("%1$02X", mByteArray[i]));
-                hexStr.append(" ");
+        if (mString == null) {
+            if (mShowInAscii) {
+                renderAscii();
+                mString = new String(mAsciiChars, 0, mUsedLength);
+            } else {
+                renderHex();
+                mString = new String(mHexChars, 0, mUsedLength * 3);
             }
         }
-
-        return hexStr.toString();
+        return mString;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Finds any of a set of byte patterns in a buffer, such as a mapped
+ * capture segment, without copying it. A single pattern is searched with
+ * Boyer-Moore-Horspool, several at once with Aho-Corasick.
+ */
+abstract class BytePatternMatcher {
+
+    protected final byte[][] mPatterns;
+    protected int mMatchedPattern = -1;
+
+    protected BytePatternMatcher(byte[][] patterns) {
+        mPatterns = patterns;
+    }
+
+    /**
+     * @param patterns non empty byte sequences to look for
+     */
+    static BytePatternMatcher create(byte[][] patterns) {
+        if (patterns.length == 0) {
+            throw new IllegalArgumentException("No patterns");
+        }
+        for (byte[] pattern : patterns) {
+            if (pattern == null || pattern.length == 0) {
+                throw new IllegalArgumentException("Empty pattern");
+            }
+        }
+        if (patterns.length == 1) {
+            return new HorspoolMatcher(patterns[0]);
+        }
+        return new AhoCorasickMatcher(patterns);
+    }
+
+    /**
+     * @return position of the first match between start and end, or -1
+     */
+    abstract int indexOf(ByteBuffer buffer, int start, int end);
+
+    /**
+     * @return index of the pattern found by the last successful indexOf()
+     */
+    int getMatchedPattern() {
+        return mMatchedPattern;
+    }
+
+    byte[] getPattern(int index) {
+        return mPatterns[index];
+    }
+}
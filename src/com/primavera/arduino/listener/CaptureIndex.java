@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Time range and record offsets of one capture segment, kept in a sidecar
+ * file next to it so a search can skip segments outside its time range and
+ * go from record to record without parsing the segment.
+ *
+ * The sidecar is written with DataOutputStream:
+ *
+ * <pre>
+ * int  magic 0x41524449 ("ARDI")
+ * int  version
+ * long length of the segment file it was built from
+ * long timestamp of the first record
+ * long timestamp of the last record
+ * int  record count
+ * int  offset of every record in the segment
+ * </pre>
+ *
+ * It is rebuilt when the segment length no longer matches, and not saved
+ * for the segment that is still being written.
+ */
+class CaptureIndex {
+
+    private final static String TAG = "CaptureIndex";
+    private final static boolean DEBUG = false;
+
+    private static final int MAGIC = 0x41524449;
+    private static final int VERSION = 1;
+
+    final long mFirstTimestamp;
+    final long mLastTimestamp;
+    final int[] mRecordOffsets;
+
+    private CaptureIndex(long firstTimestamp, long lastTimestamp, int[] recordOffsets) {
+        mFirstTimestamp = firstTimestamp;
+        mLastTimestamp = lastTimestamp;
+        mRecordOffsets = recordOffsets;
+    }
+
+    static File getIndexFile(File segmentFile) {
+        final String name = segmentFile.getName();
+        return new File(segmentFile.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".idx");
+    }
+
+    /**
+     * Reads the index of a segment, building and saving it if it is missing
+     * or out of date.
+     *
+     * @param segment the segment mapped in full
+     */
+    static CaptureIndex load(File segmentFile, ByteBuffer segment) throws IOException {
+        final File indexFile = getIndexFile(segmentFile);
+        if (indexFile.isFile()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            try {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == segmentFile.length()) {
+                    final long firstTimestamp = in.readLong();
+                    final long lastTimestamp = in.readLong();
+                    final int[] recordOffsets = new int[in.readInt()];
+                    for (int i = 0; i < recordOffsets.length; i++) {
+                        recordOffsets[i] = in.readInt();
+                    }
+                    return new CaptureIndex(firstTimestamp, lastTimestamp, recordOffsets);
+                }
+            } catch (IOException e) {
+                if (DEBUG) Log.w(TAG, "Rebuilding unreadable " + indexFile, e);
+            } finally {
+                in.close();
+            }
+        }
+
+        final CaptureIndex index = build(segment);
+        // A segment still being written is mapped at full size and keeps growing.
+        if (segment.getLong(CaptureWriter.END_OFFSET) == segmentFile.length()) {
+            try {
+                index.save(indexFile, segmentFile.length());
+            } catch (IOException e) {
+                // Still usable for this search.
+                if (DEBUG) Log.w(TAG, "Saving " + indexFile + " failed", e);
+            }
+        }
+        return index;
+    }
+
+    private static CaptureIndex build(ByteBuffer segment) throws IOException {
+        final int end = (int) Math.min(segment.getLong(CaptureWriter.END_OFFSET), segment.capacity());
+        int[] recordOffsets = new int[1024];
+        int count = 0;
+        long firstTimestamp = 0;
+        long lastTimestamp = 0;
+        int position = CaptureWriter.HEADER_SIZE;
+        while (position + CaptureWriter.RECORD_HEADER_SIZE <= end) {
+            final int length = segment.getInt(position);
+            if (length < 0 || position + CaptureWriter.RECORD_HEADER_SIZE + length > end) {
+                throw new IOException("Corrupt record at " + position);
+            }
+            if (count == recordOffsets.length) {
+                int[] tmpOffsets = new int[count * 2];
+                System.arraycopy(recordOffsets, 0, tmpOffsets, 0, count);
+                recordOffsets = tmpOffsets;
+            }
+            lastTimestamp = segment.getLong(position + 8);
+            if (count == 0) {
+                firstTimestamp = lastTimestamp;
+            }
+            recordOffsets[count++] = position;
+            position += CaptureWriter.align(CaptureWriter.RECORD_HEADER_SIZE + length);
+        }
+
+        int[] offsets = new int[count];
+        System.arraycopy(recordOffsets, 0, offsets, 0, count);
+        return new CaptureIndex(firstTimestamp, lastTimestamp, offsets);
+    }
+
+    private void save(File indexFile, long segmentLength) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(segmentLength);
+            out.writeLong(mFirstTimestamp);
+            out.writeLong(mLastTimestamp);
+            out.writeInt(mRecordOffsets.length);
+            for (int offset : mRecordOffsets) {
+                out.writeInt(offset);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    boolean overlaps(long fromNanos, long toNanos) {
+        return mRecordOffsets.length > 0 && mFirstTimestamp <= toNanos && mLastTimestamp >= fromNanos;
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the records of a capture written by {@link CaptureWriter}, segment
+ * by segment in the order they were written.
+ */
+class CaptureReader {
+
+    private final File mDirectory;
+    private int mSegmentIndex = -1;
+    private MappedByteBuffer mBuffer;
+    private int mEnd;
+    private int mPosition;
+
+    private int mDirection;
+    private int mDeviceId;
+    private long mTimestamp;
+    private int mLength;
+    private byte[] mPayload = new byte[4096];
+
+    CaptureReader(File directory) throws IOException {
+        mDirectory = directory;
+        if (!openSegment(0)) {
+            throw new IOException("No capture in " + directory);
+        }
+    }
+
+    private boolean openSegment(int index) throws IOException {
+        final File file = new File(mDirectory, CaptureWriter.getSegmentName(index));
+        if (!file.isFile()) {
+            return false;
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel channel = inputStream.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            inputStream.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (mBuffer.capacity() < CaptureWriter.HEADER_SIZE || mBuffer.getInt(0) != CaptureWriter.MAGIC
+                || mBuffer.getInt(4) != CaptureWriter.VERSION) {
+            throw new IOException(file + " is not a capture segment");
+        }
+        mSegmentIndex = index;
+        mEnd = (int) Math.min(mBuffer.getLong(CaptureWriter.END_OFFSET), mBuffer.capacity());
+        mPosition = CaptureWriter.HEADER_SIZE;
+        return true;
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the capture
+     */
+    boolean next() throws IOException {
+        while (mPosition + CaptureWriter.RECORD_HEADER_SIZE > mEnd) {
+            if (!openSegment(mSegmentIndex + 1)) {
+                return false;
+            }
+        }
+        mLength = mBuffer.getInt(mPosition);
+        if (mLength < 0 || mPosition + CaptureWriter.RECORD_HEADER_SIZE + mLength > mEnd) {
+            throw new IOException("Corrupt record in segment " + mSegmentIndex + " at " + mPosition);
+        }
+        mDeviceId = mBuffer.getInt(mPosition + 4);
+        mTimestamp = mBuffer.getLong(mPosition + 8);
+        mDirection = mBuffer.getInt(mPosition + 16);
+        if (mLength > mPayload.length) {
+            mPayload = new byte[Math.max(mLength, mPayload.length * 2)];
+        }
+        mBuffer.position(mPosition + CaptureWriter.RECORD_HEADER_SIZE);
+        mBuffer.get(mPayload, 0, mLength);
+        mPosition += CaptureWriter.align(CaptureWriter.RECORD_HEADER_SIZE + mLength);
+        return true;
+    }
+
+    int getDirection() {
+        return mDirection;
+    }
+
+    int getDeviceId() {
+        return mDeviceId;
+    }
+
+    long getTimestamp() {
+        return mTimestamp;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return the payload of the current record in the first
+     *         {@link #getLength()} bytes, overwritten by next()
+     */
+    byte[] getPayload() {
+        return mPayload;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Searches the records of a capture for byte patterns, directly in the
+ * mapped segments. A pattern has to be within one record, so turn on
+ * framing before capturing to search whole messages.
+ */
+class CaptureSearch {
+
+    static class Match {
+        final long mTimestamp;
+        final int mDirection;
+        final int mDeviceId;
+        final int mPattern;
+        // Position of the match within the record's payload.
+        final int mOffset;
+
+        Match(long timestamp, int direction, int deviceId, int pattern, int offset) {
+            mTimestamp = timestamp;
+            mDirection = direction;
+            mDeviceId = deviceId;
+            mPattern = pattern;
+            mOffset = offset;
+        }
+    }
+
+    private final File mDirectory;
+
+    CaptureSearch(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * @return the first match of every record between the two timestamps
+     *         that contains a pattern, at most maxMatches
+     */
+    List<Match> search(BytePatternMatcher matcher, long fromNanos, long toNanos, int maxMatches) throws IOException {
+        List<Match> matches = new ArrayList<Match>();
+        for (int segment = 0; matches.size() < maxMatches; segment++) {
+            final File segmentFile = new File(mDirectory, CaptureWriter.getSegmentName(segment));
+            if (!segmentFile.isFile()) {
+                break;
+            }
+
+            MappedByteBuffer buffer;
+            FileInputStream inputStream = new FileInputStream(segmentFile);
+            try {
+                FileChannel channel = inputStream.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                inputStream.close();
+            }
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (buffer.capacity() < CaptureWriter.HEADER_SIZE || buffer.getInt(0) != CaptureWriter.MAGIC) {
+                throw new IOException(segmentFile + " is not a capture segment");
+            }
+
+            final CaptureIndex index = CaptureIndex.load(segmentFile, buffer);
+            if (!index.overlaps(fromNanos, toNanos)) {
+                continue;
+            }
+            for (int i = 0; i < index.mRecordOffsets.length && matches.size() < maxMatches; i++) {
+                final int offset = index.mRecordOffsets[i];
+                final long timestamp = buffer.getLong(offset + 8);
+                if (timestamp < fromNanos || timestamp > toNanos) {
+                    continue;
+                }
+                final int payload = offset + CaptureWriter.RECORD_HEADER_SIZE;
+                final int position = matcher.indexOf(buffer, payload, payload + buffer.getInt(offset));
+                if (position >= 0) {
+                    matches.add(new Match(timestamp, buffer.getInt(offset + 16), buffer.getInt(offset + 4),
+                            matcher.getMatchedPattern(), position - payload));
+                }
+            }
+        }
+        return matches;
+    }
+}
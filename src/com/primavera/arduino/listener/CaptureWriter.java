@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+import android.util.Log;
+
+/**
+ * Records every received and sent chunk of a session into memory mapped
+ * segment files in one directory, for later replay and analysis. A new
+ * segment is started when the current one is full.
+ *
+ * All values are little endian. Every segment starts with a header:
+ *
+ * <pre>
+ *  0 int  magic 0x41524443 ("ARDC")
+ *  4 int  version
+ *  8 int  segment index, starting at 0
+ * 16 long System.currentTimeMillis() when the segment was started
+ * 24 long System.nanoTime() when the segment was started
+ * 32 long end of the last complete record
+ * </pre>
+ *
+ * followed by 8 byte aligned records from {@link #HEADER_SIZE}:
+ *
+ * <pre>
+ *  0 int  payload length
+ *  4 int  device id
+ *  8 long System.nanoTime() when the data was received or sent
+ * 16 int  direction, {@link #DIRECTION_RX} or {@link #DIRECTION_TX}
+ * 24      payload
+ * </pre>
+ *
+ * The end is updated after each record, so a segment cut short by a crash
+ * is still readable up to its last complete record.
+ */
+class CaptureWriter {
+
+    private final static String TAG = "CaptureWriter";
+    private final static boolean DEBUG = false;
+
+    static final int MAGIC = 0x41524443;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 24;
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    static final int DIRECTION_RX = 0;
+    static final int DIRECTION_TX = 1;
+
+    static final int SEGMENT_INDEX_OFFSET = 8;
+    static final int START_TIME_OFFSET = 16;
+    static final int START_NANOS_OFFSET = 24;
+    static final int END_OFFSET = 32;
+
+    private final File mDirectory;
+    private int mSegmentIndex = -1;
+    private File mSegmentFile;
+    private MappedByteBuffer mBuffer;
+    private int mEnd;
+
+    CaptureWriter(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        mDirectory = directory;
+        startSegment();
+    }
+
+    static String getSegmentName(int index) {
+        return String.format(Locale.US, "segment_%05d.cap", index);
+    }
+
+    File getDirectory() {
+        return mDirectory;
+    }
+
+    static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    /**
+     * Records one chunk. Chunks larger than a segment are left out.
+     *
+     * @return false if the capture has been closed, after close() or an I/O error
+     */
+    synchronized boolean append(int direction, int deviceId, byte[] src, int off, int len, long timestampNanos) {
+        if (mBuffer == null) {
+            return false;
+        }
+        final int size = align(RECORD_HEADER_SIZE + len);
+        if (size > SEGMENT_SIZE - HEADER_SIZE) {
+            if (DEBUG) Log.w(TAG, len + " bytes do not fit in a segment");
+            return true;
+        }
+        if (mEnd + size > SEGMENT_SIZE) {
+            try {
+                finishSegment();
+                startSegment();
+            } catch (IOException e) {
+                if (DEBUG) Log.e(TAG, "Starting segment " + mSegmentIndex + " failed, capture stopped", e);
+                mBuffer = null;
+                return false;
+            }
+        }
+
+        mBuffer.putInt(mEnd, len);
+        mBuffer.putInt(mEnd + 4, deviceId);
+        mBuffer.putLong(mEnd + 8, timestampNanos);
+        mBuffer.putInt(mEnd + 16, direction);
+        mBuffer.putInt(mEnd + 20, 0);
+        mBuffer.position(mEnd + RECORD_HEADER_SIZE);
+        mBuffer.put(src, off, len);
+        mEnd += size;
+        mBuffer.putLong(END_OFFSET, mEnd);
+        return true;
+    }
+
+    synchronized void close() {
+        if (mBuffer == null) {
+            return;
+        }
+        try {
+            finishSegment();
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Finishing segment " + mSegmentIndex + " failed", e);
+        }
+        mBuffer = null;
+    }
+
+    private void startSegment() throws IOException {
+        mSegmentIndex++;
+        mSegmentFile = new File(mDirectory, getSegmentName(mSegmentIndex));
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mSegmentFile, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(SEGMENT_SIZE);
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        } finally {
+            randomAccessFile.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(SEGMENT_INDEX_OFFSET, mSegmentIndex);
+        mBuffer.putLong(START_TIME_OFFSET, System.currentTimeMillis());
+        mBuffer.putLong(START_NANOS_OFFSET, System.nanoTime());
+        mEnd = HEADER_SIZE;
+        mBuffer.putLong(END_OFFSET, mEnd);
+    }
+
+    /**
+     * Flushes the segment and cuts the file at its last record.
+     */
+    private void finishSegment() throws IOException {
+        mBuffer.force();
+        mBuffer = null;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mSegmentFile, "rw");
+        try {
+            randomAccessFile.setLength(mEnd);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
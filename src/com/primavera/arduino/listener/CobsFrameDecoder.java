@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Consistent Overhead Byte Stuffing, with every encoded frame followed by
+ * a zero byte.
+ */
+class CobsFrameDecoder extends FrameDecoder {
+
+    private int mBlockRemaining;
+    private int mLastCode;
+    private boolean mInFrame;
+
+    @Override
+    void decode(byte[] src, int off, int len, long timestampNanos, FrameSink sink) {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final int b = src[i] & 0xFF;
+            if (b == 0) {
+                if (mInFrame) {
+                    if (mBlockRemaining != 0) {
+                        dropFrame();
+                    } else if (!isDiscarding()) {
+                        sink.onFrame(mFrame, 0, mFrameLength, timestampNanos);
+                    }
+                }
+                resetFrame();
+                mBlockRemaining = 0;
+                mInFrame = false;
+            } else if (mBlockRemaining == 0) {
+                // Code byte. Every block except the first one and those
+                // following a full block stands for a zero in the data.
+                if (mInFrame && mLastCode != 0xFF) {
+                    put((byte) 0);
+                }
+                mLastCode = b;
+                mBlockRemaining = b - 1;
+                mInFrame = true;
+            } else {
+                put((byte) b);
+                mBlockRemaining--;
+            }
+        }
+    }
+}
@@ -0,0 +1,1016 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.content.Context;
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+import android.widget.Toast;
+
+/**
+ * One connected Arduino with its own receiver, dispatcher and sender
+ * threads, receive ring, batcher and send queue. Boards never share state,
+ * so a slow board does not hold back the others.
+ */
+class DeviceConnection {
+
+    private final static String TAG = "DeviceConnection";
+    private final static boolean DEBUG = false;
+
+    private static final int RING_DATA_CAPACITY = 64 * 1024;
+    private static final int RING_CHUNK_CAPACITY = 256;
+    // Larger requests are rejected before Android 8.0.
+    private static final int IN_REQUEST_BUFFER_SIZE = 16384;
+    private static final int THROUGHPUT_WINDOW_MS = 1000;
+    private static final int CONTROL_TRANSFER_TIMEOUT_MS = 1000;
+    private static final int MAX_OUT_TRANSFER_SIZE = 16384;
+    private static final int OUT_TRANSFER_TIMEOUT_MS = 1000;
+    private static final int MAX_OUT_TRANSFER_RETRIES = 3;
+    // How long data that could not be sent waits before the next attempt.
+    private static final int SEND_RETRY_DELAY_MS = 100;
+    // Attempts in a row that send nothing before the device is given up.
+    private static final int MAX_FAILED_SENDS = 50;
+    // Bulk transfers are sized to take about this long on the serial line,
+    // which bounds how long express data waits behind them.
+    private static final int BULK_TRANSFER_DURATION_MS = 20;
+    private static final int EXPRESS_QUEUE_CAPACITY = 4 * 1024;
+    private static final int BULK_QUEUE_CAPACITY = 256 * 1024;
+    // The dispatcher is woken by new data and by stop(), so this only
+    // bounds how late a changed batching setting is noticed.
+    private static final long DISPATCHER_IDLE_WAIT_MS = 1000;
+
+    private final ArduinoCommunicatorService mService;
+    private final int mDeviceId;
+    private final int mInRequestCount;
+    private volatile boolean mIsRunning;
+    private volatile boolean mIsClosed;
+    private SenderThread mSenderThread;
+    private volatile LineCoding mLineCoding;
+    // Taken by the sender thread, which looks for it when it starts too.
+    private final AtomicReference<LineCoding> mPendingLineCoding = new AtomicReference<LineCoding>();
+    private final LinkMetrics mMetrics = new LinkMetrics();
+    private volatile String mFraming;
+    private volatile FrameDecoder mFrameDecoder;
+    private volatile ReliableLink mReliableLink;
+    private final RingBuffer mReceiveRing = new RingBuffer(RING_DATA_CAPACITY, RING_CHUNK_CAPACITY);
+    private final BatchAssembler mBatchAssembler = new BatchAssembler();
+    private final SendQueue mSendQueue;
+
+    // Replaced when the device is attached again. Its id may change then,
+    // while mDeviceId stays the one clients know the device by.
+    private volatile UsbDevice mUsbDevice;
+    private final int mVendorId;
+    private final int mProductId;
+    private int mInEndpointIndex = -1;
+    private int mOutEndpointIndex = -1;
+    // Receiver, dispatcher and sender threads not yet finished, guarded by this.
+    private int mThreadCount;
+
+    // Used by the sender thread only, and kept across reconnects so that
+    // data taken from the send queue is not lost.
+    private byte[] mCurrentExpress;
+    private int mCurrentExpressOffset;
+    private byte[] mCurrentBulk;
+    private int mCurrentBulkOffset;
+    private volatile UsbDeviceConnection mUsbConnection = null;
+    private volatile UsbEndpoint mInUsbEndpoint = null;
+    private volatile UsbEndpoint mOutUsbEndpoint = null;
+
+    DeviceConnection(ArduinoCommunicatorService service, UsbDevice usbDevice, int inRequestCount, LineCoding lineCoding) {
+        mService = service;
+        mUsbDevice = usbDevice;
+        mDeviceId = usbDevice.getDeviceId();
+        mVendorId = usbDevice.getVendorId();
+        mProductId = usbDevice.getProductId();
+        mInRequestCount = inRequestCount;
+        mLineCoding = lineCoding;
+        mSendQueue = new SendQueue(EXPRESS_QUEUE_CAPACITY, BULK_QUEUE_CAPACITY,
+                new SendQueue.LevelListener() {
+                    @Override
+                    public void onLevelChanged(boolean aboveHighWatermark, int queuedBytes, int capacity) {
+                        mService.onSendQueueLevelChanged(mDeviceId, aboveHighWatermark, queuedBytes, capacity);
+                    }
+                });
+    }
+
+    int getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * @return id of the UsbDevice currently or last attached
+     */
+    int getUsbDeviceId() {
+        return mUsbDevice.getDeviceId();
+    }
+
+    /**
+     * @return true if usbDevice is the same kind of board as this one, so
+     *         it may be this board attached again
+     */
+    boolean matches(UsbDevice usbDevice) {
+        return usbDevice.getVendorId() == mVendorId && usbDevice.getProductId() == mProductId;
+    }
+
+    LineCoding getLineCoding() {
+        return mLineCoding;
+    }
+
+    int getQueuedBytes() {
+        return mSendQueue.getQueuedBytes();
+    }
+
+    /**
+     * Blocks until the sender thread has taken enough data from the send
+     * queue that at most maxQueuedBytes are left.
+     *
+     * @return false if that did not happen within timeoutMs
+     */
+    boolean awaitQueuedBytes(int maxQueuedBytes, long timeoutMs) throws InterruptedException {
+        return mSendQueue.awaitQueuedBytes(maxQueuedBytes, timeoutMs);
+    }
+
+    boolean isRunning() {
+        return mIsRunning;
+    }
+
+    /**
+     * @return true once the connection has been given up for good, as
+     *         opposed to stopped while the device is detached
+     */
+    boolean isClosed() {
+        return mIsClosed;
+    }
+
+    LinkMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    long getOverruns() {
+        return mReceiveRing.getOverruns();
+    }
+
+    int getReceiveRingHighWaterMark() {
+        return mReceiveRing.getHighWaterMark();
+    }
+
+    void configureBatching(int byteThreshold, int maxLatencyMs, int delimiter) {
+        mBatchAssembler.configure(byteThreshold, maxLatencyMs, delimiter);
+    }
+
+    String getFraming() {
+        return mFraming;
+    }
+
+    /**
+     * Decoders keep state, so every connection gets its own instance.
+     *
+     * @throws IllegalArgumentException if the framing is unknown
+     */
+    void setFraming(String framing) {
+        final FrameDecoder frameDecoder = FrameDecoder.create(framing);
+        if (frameDecoder != null) {
+            frameDecoder.setErrorCounter(mMetrics.mFramingErrors);
+        }
+        mFrameDecoder = frameDecoder;
+        mFraming = framing;
+    }
+
+    boolean isReliable() {
+        return mReliableLink != null;
+    }
+
+    /**
+     * @return retransmission timeout in microseconds, or -1 if reliable
+     *         mode is off
+     */
+    long getRtoMicros() {
+        final ReliableLink reliableLink = mReliableLink;
+        return reliableLink != null ? reliableLink.getRtoMicros() : -1;
+    }
+
+    /**
+     * Turns the reliable transport on or off. Data that has not been
+     * acknowledged when it is turned off is lost.
+     */
+    void setReliable(boolean reliable) {
+        if (reliable == (mReliableLink != null)) {
+            return;
+        }
+        mReliableLink = reliable ? new ReliableLink(mMetrics) : null;
+        // Sends the reset packet.
+        wakeSender();
+    }
+
+    /**
+     * Applied on the sender thread so it never interleaves with an OUT transfer.
+     */
+    void changeLineCoding(LineCoding lineCoding) {
+        if (!mIsRunning) {
+            // Set when the device is attached again.
+            mLineCoding = lineCoding;
+            mPendingLineCoding.set(null);
+            return;
+        }
+        mPendingLineCoding.set(lineCoding);
+        final SenderThread senderThread = mSenderThread;
+        if (senderThread != null && senderThread.mHandler != null) {
+            senderThread.mHandler.sendEmptyMessage(12);
+        }
+    }
+
+    /**
+     * @return false if the queue is full and the data was rejected
+     */
+    boolean queueData(byte[] dataToSend, boolean express) {
+        if (!mSendQueue.offer(dataToSend, express)) {
+            if (DEBUG) Log.w(TAG, "Send queue full, " + dataToSend.length + " bytes rejected");
+            return false;
+        }
+        if (mSenderThread == null || mSenderThread.mHandler == null) {
+            // Sent once the sender thread is running.
+            return true;
+        }
+        if (express) {
+            mSenderThread.mHandler.sendMessageAtFrontOfQueue(mSenderThread.mHandler.obtainMessage(10));
+        } else {
+            wakeSender();
+        }
+        return true;
+    }
+
+    private void wakeSender() {
+        final SenderThread senderThread = mSenderThread;
+        if (senderThread != null && senderThread.mHandler != null && !senderThread.mHandler.hasMessages(10)) {
+            senderThread.mHandler.sendEmptyMessage(10);
+        }
+    }
+
+    private boolean setLineCoding(LineCoding lineCoding) {
+        final byte[] request = lineCoding.toByteArray();
+        return mUsbConnection.controlTransfer(0x21, 0x20, 0, 0, request, request.length, CONTROL_TRANSFER_TIMEOUT_MS) >= 0;
+    }
+
+    /**
+     * @return line coding currently used by the device, or null if it could not be read
+     */
+    private LineCoding queryLineCoding() {
+        final byte[] response = new byte[LineCoding.SIZE];
+        if (mUsbConnection.controlTransfer(0xA1, 0x21, 0, 0, response, response.length, CONTROL_TRANSFER_TIMEOUT_MS) != LineCoding.SIZE) {
+            return null;
+        }
+        try {
+            return LineCoding.fromByteArray(response);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    boolean open() {
+        UsbManager usbManager = (UsbManager) mService.getSystemService(Context.USB_SERVICE);
+        mUsbConnection = usbManager.openDevice(mUsbDevice);
+        if (mUsbConnection == null) {
+            if (DEBUG) Log.e(TAG, "Opening USB device failed!");
+            Toast.makeText(mService.getBaseContext(), mService.getString(R.string.opening_device_failed), Toast.LENGTH_LONG).show();
+            return false;
+        }
+        UsbInterface usbInterface = mUsbDevice.getInterface(1);
+        if (!mUsbConnection.claimInterface(usbInterface, true)) {
+            if (DEBUG) Log.e(TAG, "Claiming interface failed!");
+            Toast.makeText(mService.getBaseContext(), mService.getString(R.string.claimning_interface_failed), Toast.LENGTH_LONG).show();
+            mUsbConnection.close();
+            return false;
+        }
+
+        // Arduino USB serial converter setup
+        // Set control line state
+        mUsbConnection.controlTransfer(0x21, 0x22, 0, 0, null, 0, 0);
+        // Set line encoding.
+        setLineCoding(mLineCoding);
+
+        if (mInEndpointIndex >= 0 && mOutEndpointIndex >= 0
+                && Math.max(mInEndpointIndex, mOutEndpointIndex) < usbInterface.getEndpointCount()) {
+            // Attached again, so the endpoints are where they were.
+            mInUsbEndpoint = usbInterface.getEndpoint(mInEndpointIndex);
+            mOutUsbEndpoint = usbInterface.getEndpoint(mOutEndpointIndex);
+        } else {
+            for (int i = 0; i < usbInterface.getEndpointCount(); i++) {
+                if (usbInterface.getEndpoint(i).getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                    if (usbInterface.getEndpoint(i).getDirection() == UsbConstants.USB_DIR_IN) {
+                        mInUsbEndpoint = usbInterface.getEndpoint(i);
+                        mInEndpointIndex = i;
+                    } else if (usbInterface.getEndpoint(i).getDirection() == UsbConstants.USB_DIR_OUT) {
+                        mOutUsbEndpoint = usbInterface.getEndpoint(i);
+                        mOutEndpointIndex = i;
+                    }
+                }
+            }
+        }
+
+        if (mInUsbEndpoint == null) {
+            if (DEBUG) Log.e(TAG, "No in endpoint found!");
+            Toast.makeText(mService.getBaseContext(), mService.getString(R.string.no_in_endpoint_found), Toast.LENGTH_LONG).show();
+            mUsbConnection.close();
+            return false;
+        }
+
+        if (mOutUsbEndpoint == null) {
+            if (DEBUG) Log.e(TAG, "No out endpoint found!");
+            Toast.makeText(mService.getBaseContext(), mService.getString(R.string.no_out_endpoint_found), Toast.LENGTH_LONG).show();
+            mUsbConnection.close();
+            return false;
+        }
+
+        return true;
+    }
+
+    void start() {
+        synchronized (this) {
+            mThreadCount = 3;
+        }
+        mIsRunning = true;
+        startReceiverThread();
+        startDispatcherThread();
+        startSenderThread();
+    }
+
+    /**
+     * @return true once stopped and all threads have finished, so the
+     *         connection can be resumed
+     */
+    synchronized boolean isStopped() {
+        return !mIsRunning && mThreadCount == 0;
+    }
+
+    /**
+     * Called by each thread as it finishes. The service is told when the
+     * last one of a stopped connection is done.
+     */
+    private void onThreadFinished() {
+        synchronized (this) {
+            if (--mThreadCount > 0 || mIsRunning) {
+                return;
+            }
+        }
+        mService.onConnectionStopped(this);
+    }
+
+    /**
+     * Continues with usbDevice after the board was detached and attached
+     * again. Settings, the send queue and the reliable link state are kept,
+     * and so is the device id.
+     *
+     * @return false if the device could not be opened, or the threads of
+     *         the previous attachment are still running
+     */
+    boolean resume(UsbDevice usbDevice) {
+        // The ring and batch assembler must only have one reader.
+        if (!isStopped()) {
+            return false;
+        }
+
+        mUsbDevice = usbDevice;
+        if (!open()) {
+            return false;
+        }
+        start();
+        return true;
+    }
+
+    /**
+     * Stops the connection for good.
+     */
+    void close() {
+        mIsClosed = true;
+        stop();
+    }
+
+    void stop() {
+        mIsRunning = false;
+        mReceiveRing.wakeUp();
+        if (mSenderThread != null && mSenderThread.mHandler != null) {
+            mSenderThread.mHandler.sendEmptyMessage(11);
+        }
+        if (mUsbConnection != null) {
+            mUsbConnection.close();
+        }
+    }
+
+    private void receiveWithBulkTransfer() {
+        final ReceiveScheduler scheduler = new ReceiveScheduler();
+        byte[] inBuffer = new byte[4096];
+        while(mIsRunning) {
+            if (DEBUG) Log.d(TAG, "calling bulkTransfer() in");
+            final long start = System.nanoTime();
+            final int len = mUsbConnection.bulkTransfer(mInUsbEndpoint, inBuffer, inBuffer.length,
+                    ReceiveScheduler.IN_TRANSFER_TIMEOUT_MS);
+            final long now = System.nanoTime();
+            long pauseMs = 0;
+            if (len > 0) {
+                mMetrics.mInTransferLatency.record(now - start);
+                mMetrics.mRxBytes.addAndGet(len);
+                scheduler.onData();
+                if (!mReceiveRing.write(inBuffer, 0, len, now)) {
+                    if (DEBUG) Log.w(TAG, "receive ring overrun, " + len + " bytes dropped");
+                }
+            } else if (len == 0) {
+                if (DEBUG) Log.i(TAG, "zero data read!");
+                mMetrics.mZeroLengthReads.incrementAndGet();
+                pauseMs = scheduler.onZeroLengthRead();
+            } else if (ReceiveScheduler.isTimeout(now - start, ReceiveScheduler.IN_TRANSFER_TIMEOUT_MS)) {
+                mMetrics.mIdleTimeouts.incrementAndGet();
+                scheduler.onTimeout();
+            } else {
+                mMetrics.mReceiveErrors.incrementAndGet();
+                pauseMs = scheduler.onError();
+            }
+            mMetrics.mReceiverCpuNanos.set(Debug.threadCpuTimeNanos());
+            if (!pause(pauseMs)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Pauses the receiver thread, or gives the device up if pauseMs is
+     * negative.
+     *
+     * @return false if the receiver thread should stop
+     */
+    private boolean pause(long pauseMs) {
+        if (!mIsRunning) {
+            // Transfers fail once stop() has closed the connection.
+            return false;
+        }
+        if (pauseMs < 0) {
+            if (DEBUG) Log.e(TAG, ReceiveScheduler.MAX_CONSECUTIVE_ERRORS + " IN transfers failed in a row!");
+            mService.onReceiveFailed(mDeviceId);
+            return false;
+        }
+        if (pauseMs > 0) {
+            try {
+                Thread.sleep(pauseMs);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Keeps requestCount IN requests queued so the endpoint is never idle
+     * while a completed request is being copied into the ring. A silent
+     * device costs nothing here, since requestWait() blocks until a request
+     * completes.
+     *
+     * @return false if the requests could not be set up
+     */
+    private boolean receiveWithRequests(int requestCount) {
+        final ReceiveScheduler scheduler = new ReceiveScheduler();
+        UsbRequest[] requests = new UsbRequest[requestCount];
+        int queued = 0;
+        for (; queued < requestCount; queued++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(mUsbConnection, mInUsbEndpoint)) {
+                if (DEBUG) Log.e(TAG, "Initializing request failed!");
+                break;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(IN_REQUEST_BUFFER_SIZE);
+            request.setClientData(buffer);
+            requests[queued] = request;
+            if (!request.queue(buffer, IN_REQUEST_BUFFER_SIZE)) {
+                if (DEBUG) Log.e(TAG, "Queueing request failed!");
+                queued++;
+                break;
+            }
+        }
+        if (queued < requestCount) {
+            cancelRequests(requests, queued);
+            return false;
+        }
+
+        while (mIsRunning) {
+            final long start = System.nanoTime();
+            final UsbRequest request = mUsbConnection.requestWait();
+            final long now = System.nanoTime();
+            mMetrics.mInTransferLatency.record(now - start);
+            if (request == null) {
+                if (DEBUG) Log.e(TAG, "requestWait() failed!");
+                mMetrics.mReceiveErrors.incrementAndGet();
+                mMetrics.mReceiverCpuNanos.set(Debug.threadCpuTimeNanos());
+                if (!pause(scheduler.onError())) {
+                    break;
+                }
+                continue;
+            }
+
+            final ByteBuffer buffer = (ByteBuffer) request.getClientData();
+            final int len = buffer.position();
+            long pauseMs = 0;
+            if (len > 0) {
+                mMetrics.mRxBytes.addAndGet(len);
+                scheduler.onData();
+                buffer.flip();
+                if (!mReceiveRing.write(buffer, len, now)) {
+                    if (DEBUG) Log.w(TAG, "receive ring overrun, " + len + " bytes dropped");
+                }
+            } else {
+                if (DEBUG) Log.i(TAG, "zero data read!");
+                mMetrics.mZeroLengthReads.incrementAndGet();
+                pauseMs = scheduler.onZeroLengthRead();
+            }
+            mMetrics.mReceiverCpuNanos.set(Debug.threadCpuTimeNanos());
+            if (!pause(pauseMs)) {
+                break;
+            }
+
+            buffer.clear();
+            if (!request.queue(buffer, IN_REQUEST_BUFFER_SIZE)) {
+                if (DEBUG) Log.e(TAG, "Queueing request failed!");
+                // Expected once stop() has closed the connection.
+                if (mIsRunning) {
+                    mService.onReceiveFailed(mDeviceId);
+                }
+                break;
+            }
+        }
+
+        cancelRequests(requests, queued);
+        return true;
+    }
+
+    private static void cancelRequests(UsbRequest[] requests, int count) {
+        for (int i = 0; i < count; i++) {
+            requests[i].cancel();
+            requests[i].close();
+        }
+    }
+
+    private void startReceiverThread() {
+        new Thread("arduino_receiver_" + mDeviceId) {
+            public void run() {
+                if (mInRequestCount == 0 || !receiveWithRequests(mInRequestCount)) {
+                    if (DEBUG && mInRequestCount > 0) Log.w(TAG, "falling back to bulkTransfer()");
+                    receiveWithBulkTransfer();
+                }
+
+                if (DEBUG) Log.d(TAG, "receiver thread stopped.");
+                onThreadFinished();
+            }
+        }.start();
+    }
+
+    private void deliverBatch() {
+        final byte[] data = mBatchAssembler.copyData();
+        final int[] chunkOffsets = mBatchAssembler.copyChunkOffsets();
+        final long[] chunkTimestamps = mBatchAssembler.copyChunkTimestamps();
+        mBatchAssembler.reset();
+        mService.onDataReceived(mDeviceId, data, chunkOffsets, chunkTimestamps, mReceiveRing.getOverruns());
+        mMetrics.mBroadcastLatency.record(System.nanoTime() - chunkTimestamps[0]);
+    }
+
+    /**
+     * Passes received data through the framing and batching.
+     */
+    private void dispatch(byte[] buffer, int offset, int length, long timestamp) {
+        final FrameDecoder frameDecoder = mFrameDecoder;
+        if (frameDecoder != null) {
+            frameDecoder.decode(buffer, offset, length, timestamp, mFrameSink);
+            return;
+        }
+
+        int pos = 0;
+        while (pos < length) {
+            pos += mBatchAssembler.append(buffer, offset + pos, length - pos, timestamp);
+            if (mBatchAssembler.isFlushDue(System.nanoTime())) {
+                deliverBatch();
+            }
+        }
+    }
+
+    private final FrameDecoder.FrameSink mPayloadSink = new FrameDecoder.FrameSink() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length, long timestampNanos) {
+            dispatch(buffer, offset, length, timestampNanos);
+        }
+    };
+
+    private final FrameDecoder.FrameSink mFrameSink = new FrameDecoder.FrameSink() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length, long timestampNanos) {
+            if (mService.onFrameReceived(mDeviceId, buffer, offset, length, timestampNanos)) {
+                return;
+            }
+            if (!mBatchAssembler.appendFrame(buffer, offset, length, timestampNanos)) {
+                deliverBatch();
+                mBatchAssembler.appendFrame(buffer, offset, length, timestampNanos);
+            }
+            if (mBatchAssembler.isFlushDue(System.nanoTime())) {
+                deliverBatch();
+            }
+        }
+    };
+
+    private void startDispatcherThread() {
+        new Thread("arduino_dispatcher_" + mDeviceId) {
+            public void run() {
+                byte[] chunkBuffer = new byte[mReceiveRing.getCapacity()];
+                while (mIsRunning) {
+                    final int chunkLength = mReceiveRing.nextChunkLength();
+                    if (chunkLength < 0) {
+                        final long now = System.nanoTime();
+                        if (mBatchAssembler.isFlushDue(now)) {
+                            deliverBatch();
+                            continue;
+                        }
+                        mMetrics.mDispatcherCpuNanos.set(Debug.threadCpuTimeNanos());
+                        try {
+                            mReceiveRing.awaitData(mBatchAssembler.millisUntilDeadline(now, DISPATCHER_IDLE_WAIT_MS));
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                        continue;
+                    }
+
+                    final long timestamp = mReceiveRing.nextChunkTimestamp();
+                    final int len = mReceiveRing.readChunk(chunkBuffer, 0);
+                    final ReliableLink reliableLink = mReliableLink;
+                    if (reliableLink == null) {
+                        dispatch(chunkBuffer, 0, len, timestamp);
+                    } else if (reliableLink.receive(chunkBuffer, 0, len, timestamp, mPayloadSink)) {
+                        wakeSender();
+                    }
+                }
+
+                if (!mBatchAssembler.isEmpty()) {
+                    deliverBatch();
+                }
+
+                if (DEBUG) Log.d(TAG, "dispatcher thread stopped. occupancy: " + mReceiveRing.getOccupancy()
+                        + " high water: " + mReceiveRing.getHighWaterMark()
+                        + " overruns: " + mReceiveRing.getOverruns()
+                        + " (" + mReceiveRing.getOverrunBytes() + " bytes)");
+                onThreadFinished();
+            }
+        }.start();
+    }
+
+    private void startSenderThread() {
+        mSenderThread = new SenderThread("arduino_sender_" + mDeviceId);
+        mSenderThread.start();
+    }
+
+    private class SenderThread extends Thread {
+        public volatile Handler mHandler;
+        private long mThroughputStartTime;
+        private long mThroughputStartRxBytes;
+        private long mThroughputStartTxBytes;
+        private byte[] mTransferBuffer;
+        private final byte[] mEchoBuffer = new byte[BatchAssembler.MAX_BATCH_BYTES];
+        private int mEchoLength;
+        private final byte[] mPayloadBuffer = new byte[ReliableLink.MAX_PAYLOAD];
+        private int mFailedSends;
+
+        public SenderThread(String string) {
+            super(string);
+        }
+
+        /**
+         * Packs everything queued into transfers that are a multiple of the
+         * endpoint's max packet size, and echoes what was sent in as few
+         * broadcasts as possible. Express data goes first in every transfer,
+         * and a transfer holding bulk data is kept short enough that express
+         * data arriving meanwhile does not wait long.
+         */
+        private void drainSendQueue() {
+            final int packetSize = allocateTransferBuffer();
+            final int bulkBytes = mLineCoding.getMaxBytesPerSecond() * BULK_TRANSFER_DURATION_MS / 1000;
+            final int bulkTransferSize = Math.min(mTransferBuffer.length,
+                    Math.max(1, (bulkBytes + packetSize - 1) / packetSize) * packetSize);
+
+            while (mIsRunning) {
+                final int expressLength = pollExpress(mTransferBuffer, 0, mTransferBuffer.length);
+                final int length = pollBulk(mTransferBuffer, expressLength, Math.max(expressLength, bulkTransferSize));
+                if (length == 0) {
+                    break;
+                }
+
+                final int sent = writeFully(length, true);
+                mMetrics.mTxBytes.addAndGet(sent);
+                if (sent > 0) {
+                    mFailedSends = 0;
+                }
+                if (sent < length) {
+                    requeueUnsent(length, expressLength, sent);
+                    if (++mFailedSends < MAX_FAILED_SENDS) {
+                        if (mIsRunning) {
+                            mHandler.sendEmptyMessageDelayed(10, SEND_RETRY_DELAY_MS);
+                        }
+                    } else if (mFailedSends == MAX_FAILED_SENDS) {
+                        if (DEBUG) Log.e(TAG, MAX_FAILED_SENDS + " attempts to send failed in a row!");
+                        // The data stays queued for when the device is resumed.
+                        mService.onSendFailed(mDeviceId);
+                    }
+                    break;
+                }
+            }
+
+            flushEcho();
+        }
+
+        /**
+         * Puts what {@link #writeFully(int, boolean)} could not send back in
+         * front of the data not yet sent, so nothing is lost while the
+         * device is detached.
+         *
+         * @param expressLength number of express bytes at the start of the transfer
+         */
+        private void requeueUnsent(int length, int expressLength, int sent) {
+            final int expressUnsent = Math.max(0, expressLength - sent);
+            final int bulkUnsent = length - sent - expressUnsent;
+            mMetrics.mRequeuedBytes.addAndGet(length - sent);
+            // writeFully() has moved the unsent bytes to the front of the buffer.
+            if (expressUnsent > 0) {
+                mCurrentExpress = prepend(mTransferBuffer, 0, expressUnsent, mCurrentExpress, mCurrentExpressOffset);
+                mCurrentExpressOffset = 0;
+            }
+            if (bulkUnsent > 0) {
+                mCurrentBulk = prepend(mTransferBuffer, expressUnsent, bulkUnsent, mCurrentBulk, mCurrentBulkOffset);
+                mCurrentBulkOffset = 0;
+            }
+        }
+
+        private byte[] prepend(byte[] src, int off, int len, byte[] current, int currentOffset) {
+            final int currentLength = current != null ? current.length - currentOffset : 0;
+            byte[] result = new byte[len + currentLength];
+            System.arraycopy(src, off, result, 0, len);
+            if (currentLength > 0) {
+                System.arraycopy(current, currentOffset, result, len, currentLength);
+            }
+            return result;
+        }
+
+        /**
+         * Reliable mode version of {@link #drainSendQueue()}: fills the
+         * window with data packets, sends packets that are due again, and
+         * acknowledges received data. The echo holds the payload only.
+         */
+        private void drainReliable(ReliableLink reliableLink) {
+            allocateTransferBuffer();
+            final long now = System.nanoTime();
+            int length = appendPacket(reliableLink.pollResetAck(), 0);
+            length = appendPacket(reliableLink.pollReset(now), length);
+
+            byte[] packet;
+            while ((packet = reliableLink.pollRetransmission(now)) != null) {
+                length = appendPacket(packet, length);
+            }
+            while (reliableLink.canSend()) {
+                int payloadLength = pollExpress(mPayloadBuffer, 0, mPayloadBuffer.length);
+                payloadLength = pollBulk(mPayloadBuffer, payloadLength, mPayloadBuffer.length);
+                if (payloadLength == 0) {
+                    break;
+                }
+                length = appendPacket(reliableLink.send(mPayloadBuffer, payloadLength, now), length);
+                appendEcho(mPayloadBuffer, payloadLength);
+            }
+            length = appendPacket(reliableLink.pollAck(), length);
+            if (length > 0) {
+                mMetrics.mTxBytes.addAndGet(writeFully(length, false));
+            }
+            flushEcho();
+
+            final long delayMs = reliableLink.millisUntilRetransmission(System.nanoTime());
+            mHandler.removeMessages(14);
+            if (delayMs >= 0) {
+                mHandler.sendEmptyMessageDelayed(14, delayMs);
+            }
+        }
+
+        /**
+         * @return max packet size of the OUT endpoint
+         */
+        private int allocateTransferBuffer() {
+            final int packetSize = Math.max(1, mOutUsbEndpoint.getMaxPacketSize());
+            if (mTransferBuffer == null) {
+                mTransferBuffer = new byte[Math.max(packetSize, MAX_OUT_TRANSFER_SIZE / packetSize * packetSize)];
+            }
+            return packetSize;
+        }
+
+        /**
+         * Adds a packet to the transfer buffer, sending the buffer first if
+         * the packet does not fit.
+         *
+         * @return new length of the transfer buffer
+         */
+        private int appendPacket(byte[] packet, int length) {
+            if (packet == null) {
+                return length;
+            }
+            if (length + packet.length > mTransferBuffer.length) {
+                mMetrics.mTxBytes.addAndGet(writeFully(length, false));
+                length = 0;
+            }
+            System.arraycopy(packet, 0, mTransferBuffer, length, packet.length);
+            return length + packet.length;
+        }
+
+        /**
+         * Copies queued express data to dst until end is reached.
+         *
+         * @return offset after the copied data
+         */
+        private int pollExpress(byte[] dst, int offset, int end) {
+            while (offset < end) {
+                if (mCurrentExpress == null) {
+                    mCurrentExpress = mSendQueue.pollExpress();
+                    mCurrentExpressOffset = 0;
+                    if (mCurrentExpress == null) {
+                        break;
+                    }
+                }
+                final int count = Math.min(mCurrentExpress.length - mCurrentExpressOffset, end - offset);
+                System.arraycopy(mCurrentExpress, mCurrentExpressOffset, dst, offset, count);
+                offset += count;
+                mCurrentExpressOffset += count;
+                if (mCurrentExpressOffset == mCurrentExpress.length) {
+                    mCurrentExpress = null;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * Copies queued bulk data to dst until end is reached.
+         *
+         * @return offset after the copied data
+         */
+        private int pollBulk(byte[] dst, int offset, int end) {
+            while (offset < end) {
+                if (mCurrentBulk == null) {
+                    mCurrentBulk = mSendQueue.pollBulk();
+                    mCurrentBulkOffset = 0;
+                    if (mCurrentBulk == null) {
+                        break;
+                    }
+                }
+                final int count = Math.min(mCurrentBulk.length - mCurrentBulkOffset, end - offset);
+                System.arraycopy(mCurrentBulk, mCurrentBulkOffset, dst, offset, count);
+                offset += count;
+                mCurrentBulkOffset += count;
+                if (mCurrentBulkOffset == mCurrentBulk.length) {
+                    mCurrentBulk = null;
+                }
+            }
+            return offset;
+        }
+
+        /**
+         * Sends the first length bytes of the transfer buffer, retrying the
+         * remainder after short or failed writes.
+         *
+         * @param echo true to echo the sent bytes
+         * @return number of bytes actually sent
+         */
+        private int writeFully(int length, boolean echo) {
+            int sent = 0;
+            int failures = 0;
+            while (sent < length) {
+                if (DEBUG) Log.d(TAG, "calling bulkTransfer() out");
+                final long start = System.nanoTime();
+                final int len = mUsbConnection.bulkTransfer(mOutUsbEndpoint, mTransferBuffer, length - sent, OUT_TRANSFER_TIMEOUT_MS);
+                mMetrics.mOutTransferLatency.record(System.nanoTime() - start);
+                if (DEBUG) Log.d(TAG, len + " of " + (length - sent) + " sent.");
+                if (len <= 0) {
+                    mMetrics.mFailedWrites.incrementAndGet();
+                } else if (len < length - sent) {
+                    mMetrics.mShortWrites.incrementAndGet();
+                }
+                if (len > 0) {
+                    if (echo) {
+                        appendEcho(mTransferBuffer, len);
+                    }
+                    sent += len;
+                    failures = 0;
+                    // bulkTransfer() cannot start at an offset before API 18,
+                    // so move the remainder to the front.
+                    System.arraycopy(mTransferBuffer, len, mTransferBuffer, 0, length - sent);
+                } else if (++failures == MAX_OUT_TRANSFER_RETRIES || !mIsRunning) {
+                    if (DEBUG) Log.e(TAG, (length - sent) + " bytes could not be sent!");
+                    break;
+                }
+            }
+            return sent;
+        }
+
+        private void appendEcho(byte[] src, int length) {
+            if (mEchoLength + length > mEchoBuffer.length) {
+                flushEcho();
+            }
+            System.arraycopy(src, 0, mEchoBuffer, mEchoLength, length);
+            mEchoLength += length;
+        }
+
+        private void flushEcho() {
+            if (mEchoLength == 0) {
+                return;
+            }
+            byte[] sentData = new byte[mEchoLength];
+            System.arraycopy(mEchoBuffer, 0, sentData, 0, mEchoLength);
+            mEchoLength = 0;
+            mService.onDataSent(mDeviceId, sentData);
+        }
+
+        public void run() {
+
+            Looper.prepare();
+
+            mHandler = new Handler() {
+                public void handleMessage(Message msg) {
+                    if (DEBUG) Log.i(TAG, "handleMessage() " + msg.what);
+                    if (msg.what == 10 || msg.what == 14) {
+                        final ReliableLink reliableLink = mReliableLink;
+                        if (reliableLink != null) {
+                            drainReliable(reliableLink);
+                        } else {
+                            drainSendQueue();
+                        }
+                    } else if (msg.what == 11) {
+                        Looper.myLooper().quit();
+                    } else if (msg.what == 12) {
+                        final LineCoding lineCoding = mPendingLineCoding.getAndSet(null);
+                        if (lineCoding == null) {
+                            // Taken by an earlier message.
+                            return;
+                        }
+                        if (setLineCoding(lineCoding)) {
+                            mLineCoding = lineCoding;
+                        } else {
+                            if (DEBUG) Log.e(TAG, "Setting line coding " + lineCoding + " failed!");
+                        }
+
+                        // Measure what the new setting achieves, restarting
+                        // the window if another change arrives meanwhile.
+                        mThroughputStartTime = System.nanoTime();
+                        mThroughputStartRxBytes = mReceiveRing.getTotalBytes();
+                        mThroughputStartTxBytes = mMetrics.mTxBytes.get();
+                        removeMessages(13);
+                        sendEmptyMessageDelayed(13, THROUGHPUT_WINDOW_MS);
+                    } else if (msg.what == 13) {
+                        final long elapsedNanos = System.nanoTime() - mThroughputStartTime;
+                        final long rxBytes = mReceiveRing.getTotalBytes() - mThroughputStartRxBytes;
+                        final long txBytes = mMetrics.mTxBytes.get() - mThroughputStartTxBytes;
+                        LineCoding lineCoding = queryLineCoding();
+                        if (lineCoding == null) {
+                            lineCoding = mLineCoding;
+                        }
+                        if (DEBUG) Log.i(TAG, "line coding " + lineCoding + " rx " + rxBytes + " tx " + txBytes
+                                + " bytes in " + elapsedNanos / 1000000 + " ms");
+
+                        mService.onLineCodingChanged(mDeviceId, lineCoding,
+                                rxBytes * 1000000000L / elapsedNanos, txBytes * 1000000000L / elapsedNanos);
+                    }
+                    mMetrics.mSenderCpuNanos.set(Debug.threadCpuTimeNanos());
+                }
+            };
+
+            // Apply and send anything asked for before the thread was running.
+            if (mPendingLineCoding.get() != null) {
+                mHandler.sendEmptyMessage(12);
+            }
+            mHandler.sendEmptyMessage(10);
+
+            Looper.loop();
+            if (DEBUG) Log.i(TAG, "sender thread stopped");
+            onThreadFinished();
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * Streams a file to one device in fixed size chunks. A chunk is only read
+ * when the device's send queue has room for it, so the upload goes as fast
+ * as the board takes the data (or, in reliable mode, acknowledges it) while
+ * memory use stays constant whatever the file size.
+ */
+class FileUpload extends Thread {
+
+    private final static String TAG = "FileUpload";
+    private final static boolean DEBUG = false;
+
+    static final int STATUS_RUNNING = 0;
+    static final int STATUS_DONE = 1;
+    static final int STATUS_FAILED = 2;
+    static final int STATUS_CANCELLED = 3;
+
+    private static final int CHUNK_SIZE = 4096;
+    // Enough to keep the sender thread busy between two wake ups.
+    private static final int MAX_QUEUED_BYTES = 4 * CHUNK_SIZE;
+    private static final long QUEUE_WAIT_MS = 100;
+    private static final long PROGRESS_INTERVAL_NANOS = 500000000L;
+
+    interface Listener {
+        /**
+         * Called on the upload thread, at most every half second while
+         * running and once when finished.
+         *
+         * @param bytesPerSecond rate since the previous call while running,
+         *        average of the whole upload when finished
+         */
+        void onUploadProgress(FileUpload upload, int status, long bytesSent, long bytesPerSecond);
+    }
+
+    private final long mRequestId;
+    private final String mPackage;
+    private final DeviceConnection mConnection;
+    private final ParcelFileDescriptor mFileDescriptor;
+    private final long mTotalBytes;
+    private final Listener mListener;
+    private volatile boolean mCancelled;
+
+    FileUpload(long requestId, String packageName, DeviceConnection connection, ParcelFileDescriptor fileDescriptor,
+            Listener listener) {
+        super("arduino_upload_" + connection.getDeviceId());
+        mRequestId = requestId;
+        mPackage = packageName;
+        mConnection = connection;
+        mFileDescriptor = fileDescriptor;
+        mTotalBytes = fileDescriptor.getStatSize();
+        mListener = listener;
+    }
+
+    long getRequestId() {
+        return mRequestId;
+    }
+
+    String getPackage() {
+        return mPackage;
+    }
+
+    int getDeviceId() {
+        return mConnection.getDeviceId();
+    }
+
+    /**
+     * @return size of the file, or -1 if it is not known (e.g. a pipe)
+     */
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    void cancel() {
+        mCancelled = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        final long startTime = System.nanoTime();
+        long bytesSent = 0;
+        int status = STATUS_FAILED;
+        // Closes the descriptor when the channel is closed.
+        FileChannel channel = new ParcelFileDescriptor.AutoCloseInputStream(mFileDescriptor).getChannel();
+        try {
+            long progressTime = startTime;
+            long progressBytes = 0;
+            byte[] chunk = null;
+            while (!mCancelled) {
+                if (!mConnection.awaitQueuedBytes(MAX_QUEUED_BYTES - CHUNK_SIZE, QUEUE_WAIT_MS)) {
+                    // While the device is detached the upload waits for it.
+                    if (mConnection.isClosed()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                if (chunk == null) {
+                    chunk = new byte[CHUNK_SIZE];
+                    final int length = channel.read(ByteBuffer.wrap(chunk));
+                    if (length < 0) {
+                        status = awaitDrained() ? STATUS_DONE : STATUS_FAILED;
+                        break;
+                    }
+                    if (length < CHUNK_SIZE) {
+                        byte[] tmpChunk = new byte[length];
+                        System.arraycopy(chunk, 0, tmpChunk, 0, length);
+                        chunk = tmpChunk;
+                    }
+                }
+                // Other senders may have filled the queue meanwhile, in
+                // which case the chunk is offered again after waiting.
+                if (chunk.length > 0 && !mConnection.queueData(chunk, false)) {
+                    continue;
+                }
+                bytesSent += chunk.length;
+                chunk = null;
+
+                final long now = System.nanoTime();
+                if (now - progressTime >= PROGRESS_INTERVAL_NANOS) {
+                    mListener.onUploadProgress(this, STATUS_RUNNING, bytesSent,
+                            (bytesSent - progressBytes) * 1000000000L / (now - progressTime));
+                    progressTime = now;
+                    progressBytes = bytesSent;
+                }
+            }
+        } catch (InterruptedException e) {
+            if (DEBUG) Log.i(TAG, "Upload " + mRequestId + " interrupted");
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Reading upload " + mRequestId + " failed: " + e.getMessage());
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (DEBUG) Log.w(TAG, "Closing upload " + mRequestId + " failed: " + e.getMessage());
+            }
+        }
+
+        if (mCancelled) {
+            status = STATUS_CANCELLED;
+        }
+        final long elapsedNanos = Math.max(1, System.nanoTime() - startTime);
+        if (DEBUG) Log.i(TAG, "Upload " + mRequestId + " finished with status " + status + ", " + bytesSent
+                + " bytes in " + elapsedNanos / 1000000 + " ms");
+        mListener.onUploadProgress(this, status, bytesSent, bytesSent * 1000000000L / elapsedNanos);
+    }
+
+    /**
+     * @return true once everything queued has been taken by the sender
+     *         thread, false if the connection was closed first
+     */
+    private boolean awaitDrained() throws InterruptedException {
+        while (!mConnection.awaitQueuedBytes(0, QUEUE_WAIT_MS)) {
+            if (mConnection.isClosed() || mCancelled) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
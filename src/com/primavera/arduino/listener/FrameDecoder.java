@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Incremental decoder that turns the received byte stream into whole frames.
+ * Decoders keep their state between calls, so a frame may be split over any
+ * number of USB transfers. Frames that lie completely within one call are
+ * passed to the sink as a slice of the input where the encoding allows it,
+ * otherwise they are assembled in the decoder's own buffer.
+ *
+ * Decoders are not thread safe, all calls must come from the dispatcher thread.
+ */
+abstract class FrameDecoder {
+
+    interface FrameSink {
+        /**
+         * The buffer is only valid during the call.
+         */
+        void onFrame(byte[] buffer, int offset, int length, long timestampNanos);
+    }
+
+    static final String FRAMING_NONE = "none";
+    static final String FRAMING_LINE = "line";
+    static final String FRAMING_LENGTH_PREFIX = "length";
+    static final String FRAMING_COBS = "cobs";
+    static final String FRAMING_SLIP = "slip";
+
+    static final int MAX_FRAME_SIZE = BatchAssembler.MAX_BATCH_BYTES;
+
+    protected final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+    protected int mFrameLength;
+    private boolean mDiscarding;
+    private AtomicLong mErrorCounter;
+
+    /**
+     * @return decoder for the framing, or null for {@link #FRAMING_NONE}
+     * @throws IllegalArgumentException if the framing is unknown
+     */
+    static FrameDecoder create(String framing) {
+        if (framing == null || FRAMING_NONE.equals(framing)) {
+            return null;
+        } else if (FRAMING_LINE.equals(framing)) {
+            return new LineFrameDecoder();
+        } else if (FRAMING_LENGTH_PREFIX.equals(framing)) {
+            return new LengthPrefixFrameDecoder();
+        } else if (FRAMING_COBS.equals(framing)) {
+            return new CobsFrameDecoder();
+        } else if (FRAMING_SLIP.equals(framing)) {
+            return new SlipFrameDecoder();
+        }
+        throw new IllegalArgumentException("Unknown framing " + framing);
+    }
+
+    abstract void decode(byte[] src, int off, int len, long timestampNanos, FrameSink sink);
+
+    /**
+     * @param errorCounter counts frames dropped because they were malformed
+     *        or too long, usually one of the connection's {@link LinkMetrics}
+     */
+    void setErrorCounter(AtomicLong errorCounter) {
+        mErrorCounter = errorCounter;
+    }
+
+    /**
+     * Adds one byte to the frame being assembled. When the frame grows too
+     * large it is dropped, and everything up to the next frame boundary is
+     * ignored.
+     */
+    protected final void put(byte b) {
+        if (mDiscarding) {
+            return;
+        }
+        if (mFrameLength == mFrame.length) {
+            dropFrame();
+            return;
+        }
+        mFrame[mFrameLength++] = b;
+    }
+
+    /**
+     * Bulk version of {@link #put(byte)}.
+     */
+    protected final void put(byte[] src, int off, int len) {
+        if (mDiscarding) {
+            return;
+        }
+        if (mFrameLength + len > mFrame.length) {
+            dropFrame();
+            return;
+        }
+        System.arraycopy(src, off, mFrame, mFrameLength, len);
+        mFrameLength += len;
+    }
+
+    /**
+     * Counts the current frame as an error and ignores the rest of it.
+     */
+    protected final void dropFrame() {
+        if (!mDiscarding) {
+            if (mErrorCounter != null) {
+                mErrorCounter.incrementAndGet();
+            }
+            mDiscarding = true;
+        }
+        mFrameLength = 0;
+    }
+
+    /**
+     * @return true if the current frame is being dropped
+     */
+    protected final boolean isDiscarding() {
+        return mDiscarding;
+    }
+
+    /**
+     * Starts assembling a new frame.
+     */
+    protected final void resetFrame() {
+        mFrameLength = 0;
+        mDiscarding = false;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes outgoing frames so that the matching {@link FrameDecoder} on the
+ * other side finds them again.
+ */
+class FrameEncoder {
+
+    private static final int SLIP_END = 0xC0;
+    private static final int SLIP_ESC = 0xDB;
+    private static final int SLIP_ESC_END = 0xDC;
+    private static final int SLIP_ESC_ESC = 0xDD;
+
+    /**
+     * @return true if frames in this framing may hold any byte values
+     */
+    static boolean isBinarySafe(String framing) {
+        return FrameDecoder.FRAMING_LENGTH_PREFIX.equals(framing) || FrameDecoder.FRAMING_COBS.equals(framing)
+                || FrameDecoder.FRAMING_SLIP.equals(framing);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the framing is unknown, or the
+     *         frame is too long for a length prefix
+     */
+    static byte[] encode(String framing, byte[] src, int off, int len) {
+        if (framing == null || FrameDecoder.FRAMING_NONE.equals(framing)) {
+            byte[] frame = new byte[len];
+            System.arraycopy(src, off, frame, 0, len);
+            return frame;
+        } else if (FrameDecoder.FRAMING_LINE.equals(framing)) {
+            byte[] frame = new byte[len + 1];
+            System.arraycopy(src, off, frame, 0, len);
+            frame[len] = '\n';
+            return frame;
+        } else if (FrameDecoder.FRAMING_LENGTH_PREFIX.equals(framing)) {
+            if (len > 0xFFFF) {
+                throw new IllegalArgumentException("Frame of " + len + " bytes is too long");
+            }
+            byte[] frame = new byte[len + 2];
+            frame[0] = (byte) len;
+            frame[1] = (byte) (len >> 8);
+            System.arraycopy(src, off, frame, 2, len);
+            return frame;
+        } else if (FrameDecoder.FRAMING_COBS.equals(framing)) {
+            return encodeCobs(src, off, len);
+        } else if (FrameDecoder.FRAMING_SLIP.equals(framing)) {
+            return encodeSlip(src, off, len);
+        }
+        throw new IllegalArgumentException("Unknown framing " + framing);
+    }
+
+    private static byte[] encodeCobs(byte[] src, int off, int len) {
+        // One code byte per 254 data bytes, plus the first code and the zero.
+        byte[] frame = new byte[len + len / 254 + 2];
+        int codeIndex = 0;
+        int pos = 1;
+        int code = 1;
+        for (int i = off; i < off + len; i++) {
+            if (src[i] == 0) {
+                frame[codeIndex] = (byte) code;
+                codeIndex = pos++;
+                code = 1;
+            } else {
+                frame[pos++] = src[i];
+                if (++code == 0xFF) {
+                    frame[codeIndex] = (byte) code;
+                    codeIndex = pos++;
+                    code = 1;
+                }
+            }
+        }
+        frame[codeIndex] = (byte) code;
+        frame[pos++] = 0;
+
+        byte[] result = new byte[pos];
+        System.arraycopy(frame, 0, result, 0, pos);
+        return result;
+    }
+
+    private static byte[] encodeSlip(byte[] src, int off, int len) {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(len + 2);
+        // A leading END flushes any line noise received before the frame.
+        frame.write(SLIP_END);
+        for (int i = off; i < off + len; i++) {
+            final int b = src[i] & 0xFF;
+            if (b == SLIP_END) {
+                frame.write(SLIP_ESC);
+                frame.write(SLIP_ESC_END);
+            } else if (b == SLIP_ESC) {
+                frame.write(SLIP_ESC);
+                frame.write(SLIP_ESC_ESC);
+            } else {
+                frame.write(b);
+            }
+        }
+        frame.write(SLIP_END);
+        return frame.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Boyer-Moore-Horspool search for one pattern. Skips up to the pattern
+ * length per comparison, so long patterns make the search sublinear.
+ */
+class HorspoolMatcher extends BytePatternMatcher {
+
+    private final byte[] mPattern;
+    private final int[] mSkipTable = new int[256];
+
+    HorspoolMatcher(byte[] pattern) {
+        super(new byte[][] { pattern });
+        mPattern = pattern.clone();
+        final int last = mPattern.length - 1;
+        for (int i = 0; i < mSkipTable.length; i++) {
+            mSkipTable[i] = mPattern.length;
+        }
+        for (int i = 0; i < last; i++) {
+            mSkipTable[mPattern[i] & 0xFF] = last - i;
+        }
+    }
+
+    @Override
+    int indexOf(ByteBuffer buffer, int start, int end) {
+        final int last = mPattern.length - 1;
+        int pos = start;
+        while (pos + last < end) {
+            int i = last;
+            while (buffer.get(pos + i) == mPattern[i]) {
+                if (i == 0) {
+                    mMatchedPattern = 0;
+                    return pos;
+                }
+                i--;
+            }
+            pos += mSkipTable[buffer.get(pos + last) & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * Same as {@link #indexOf(ByteBuffer, int, int)} for data already in an
+     * array, which saves wrapping it for every frame.
+     */
+    int indexOf(byte[] buffer, int start, int end) {
+        final int last = mPattern.length - 1;
+        int pos = start;
+        while (pos + last < end) {
+            int i = last;
+            while (buffer[pos + i] == mPattern[i]) {
+                if (i == 0) {
+                    mMatchedPattern = 0;
+                    return pos;
+                }
+                i--;
+            }
+            pos += mSkipTable[buffer[pos + last] & 0xFF];
+        }
+        return -1;
+    }
+}
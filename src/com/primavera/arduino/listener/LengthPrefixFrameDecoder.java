@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Frames preceded by their length as a 16 bit little endian value, the
+ * order Serial.write() produces on AVR.
+ */
+class LengthPrefixFrameDecoder extends FrameDecoder {
+
+    private static final int HEADER_SIZE = 2;
+
+    private int mHeaderBytes;
+    private int mExpectedLength;
+
+    @Override
+    void decode(byte[] src, int off, int len, long timestampNanos, FrameSink sink) {
+        final int end = off + len;
+        int pos = off;
+        while (pos < end) {
+            if (mHeaderBytes < HEADER_SIZE) {
+                mExpectedLength |= (src[pos++] & 0xFF) << (8 * mHeaderBytes);
+                mHeaderBytes++;
+                continue;
+            }
+
+            final int missing = mExpectedLength - mFrameLength;
+            if (mFrameLength == 0 && end - pos >= missing) {
+                // The whole frame is in this transfer.
+                sink.onFrame(src, pos, missing, timestampNanos);
+                pos += missing;
+                nextFrame();
+                continue;
+            }
+
+            final int count = Math.min(missing, end - pos);
+            put(src, pos, count);
+            pos += count;
+            if (mFrameLength == mExpectedLength) {
+                sink.onFrame(mFrame, 0, mFrameLength, timestampNanos);
+                nextFrame();
+            }
+        }
+
+        if (mHeaderBytes == HEADER_SIZE && mExpectedLength == 0) {
+            sink.onFrame(mFrame, 0, 0, timestampNanos);
+            nextFrame();
+        }
+    }
+
+    private void nextFrame() {
+        resetFrame();
+        mHeaderBytes = 0;
+        mExpectedLength = 0;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * CDC-ACM line coding, the 7 byte structure sent with SET_LINE_CODING and
+ * returned by GET_LINE_CODING.
+ */
+class LineCoding {
+
+    static final int SIZE = 7;
+
+    static final int STOP_BITS_1 = 0;
+    static final int STOP_BITS_1_5 = 1;
+    static final int STOP_BITS_2 = 2;
+
+    static final int PARITY_NONE = 0;
+    static final int PARITY_ODD = 1;
+    static final int PARITY_EVEN = 2;
+    static final int PARITY_MARK = 3;
+    static final int PARITY_SPACE = 4;
+
+    static final LineCoding DEFAULT = new LineCoding(9600, 8, PARITY_NONE, STOP_BITS_1);
+
+    final int mBaudRate;
+    final int mDataBits;
+    final int mParity;
+    final int mStopBits;
+
+    LineCoding(int baudRate, int dataBits, int parity, int stopBits) {
+        if (baudRate <= 0) {
+            throw new IllegalArgumentException("Invalid baud rate " + baudRate);
+        }
+        if ((dataBits < 5 || dataBits > 8) && dataBits != 16) {
+            throw new IllegalArgumentException("Invalid data bits " + dataBits);
+        }
+        if (parity < PARITY_NONE || parity > PARITY_SPACE) {
+            throw new IllegalArgumentException("Invalid parity " + parity);
+        }
+        if (stopBits < STOP_BITS_1 || stopBits > STOP_BITS_2) {
+            throw new IllegalArgumentException("Invalid stop bits " + stopBits);
+        }
+        mBaudRate = baudRate;
+        mDataBits = dataBits;
+        mParity = parity;
+        mStopBits = stopBits;
+    }
+
+    static LineCoding fromByteArray(byte[] lineCoding) {
+        final int baudRate = (lineCoding[0] & 0xFF)
+                | (lineCoding[1] & 0xFF) << 8
+                | (lineCoding[2] & 0xFF) << 16
+                | (lineCoding[3] & 0xFF) << 24;
+        return new LineCoding(baudRate, lineCoding[6], lineCoding[5], lineCoding[4]);
+    }
+
+    byte[] toByteArray() {
+        return new byte[] {
+                (byte) mBaudRate,
+                (byte) (mBaudRate >> 8),
+                (byte) (mBaudRate >> 16),
+                (byte) (mBaudRate >> 24),
+                (byte) mStopBits,
+                (byte) mParity,
+                (byte) mDataBits };
+    }
+
+    /**
+     * @return the most bytes per second the line can carry in one direction
+     */
+    int getMaxBytesPerSecond() {
+        // One start bit, the data bits, an optional parity bit and the stop bits.
+        final double bitsPerCharacter = 1 + mDataBits + (mParity == PARITY_NONE ? 0 : 1)
+                + (mStopBits == STOP_BITS_1 ? 1 : mStopBits == STOP_BITS_1_5 ? 1.5 : 2);
+        return (int) (mBaudRate / bitsPerCharacter);
+    }
+
+    @Override
+    public String toString() {
+        final String stopBits = mStopBits == STOP_BITS_1 ? "1" : mStopBits == STOP_BITS_1_5 ? "1.5" : "2";
+        return mBaudRate + " " + mDataBits + "NOEMS".charAt(mParity) + stopBits;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Frames terminated by a newline, as sent by Serial.println(). The newline
+ * and a carriage return before it are not part of the frame.
+ */
+class LineFrameDecoder extends FrameDecoder {
+
+    @Override
+    void decode(byte[] src, int off, int len, long timestampNanos, FrameSink sink) {
+        final int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (src[i] != '\n') {
+                continue;
+            }
+
+            if (mFrameLength == 0 && !isDiscarding()) {
+                emit(src, start, i - start, timestampNanos, sink);
+            } else {
+                put(src, start, i - start);
+                if (!isDiscarding()) {
+                    emit(mFrame, 0, mFrameLength, timestampNanos, sink);
+                }
+                resetFrame();
+            }
+            start = i + 1;
+        }
+        put(src, start, end - start);
+    }
+
+    private static void emit(byte[] buffer, int offset, int length, long timestampNanos, FrameSink sink) {
+        if (length > 0 && buffer[offset + length - 1] == '\r') {
+            length--;
+        }
+        sink.onFrame(buffer, offset, length, timestampNanos);
+    }
+}
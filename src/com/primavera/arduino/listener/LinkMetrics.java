@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one device connection, updated by its receiver, dispatcher
+ * and sender threads without locking and read when metrics are queried.
+ */
+class LinkMetrics {
+
+    final AtomicLong mRxBytes = new AtomicLong();
+    final AtomicLong mTxBytes = new AtomicLong();
+    final AtomicLong mZeroLengthReads = new AtomicLong();
+    final AtomicLong mShortWrites = new AtomicLong();
+    final AtomicLong mFailedWrites = new AtomicLong();
+    // Bytes put back in the send queue after writes failed.
+    final AtomicLong mRequeuedBytes = new AtomicLong();
+    final AtomicLong mReceiveErrors = new AtomicLong();
+    final AtomicLong mIdleTimeouts = new AtomicLong();
+    // CPU time used by each thread so far, or -1 if not supported.
+    final AtomicLong mReceiverCpuNanos = new AtomicLong();
+    final AtomicLong mDispatcherCpuNanos = new AtomicLong();
+    final AtomicLong mSenderCpuNanos = new AtomicLong();
+    // Frames dropped by the framing decoder as malformed or too long.
+    final AtomicLong mFramingErrors = new AtomicLong();
+    // Reliable mode only.
+    final AtomicLong mRetransmissions = new AtomicLong();
+    final AtomicLong mCorruptPackets = new AtomicLong();
+    // Time spent in each IN and OUT transfer or requestWait().
+    final LatencyHistogram mInTransferLatency = new LatencyHistogram();
+    final LatencyHistogram mOutTransferLatency = new LatencyHistogram();
+    // From receiving the oldest chunk of a batch until it has been broadcast.
+    final LatencyHistogram mBroadcastLatency = new LatencyHistogram();
+
+    private long mRateStartTime = System.nanoTime();
+    private long mRateStartRxBytes;
+    private long mRateStartTxBytes;
+
+    /**
+     * @return received and sent bytes per second since the previous call
+     */
+    synchronized long[] sampleRates() {
+        final long now = System.nanoTime();
+        final long elapsedNanos = Math.max(1, now - mRateStartTime);
+        final long rxBytes = mRxBytes.get();
+        final long txBytes = mTxBytes.get();
+        final long[] rates = new long[] {
+                (rxBytes - mRateStartRxBytes) * 1000000000L / elapsedNanos,
+                (txBytes - mRateStartTxBytes) * 1000000000L / elapsedNanos };
+        mRateStartTime = now;
+        mRateStartRxBytes = rxBytes;
+        mRateStartTxBytes = txBytes;
+        return rates;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.view.View;
+
+/**
+ * Plots every field of a {@link SampleBuffer}, each scaled to the full
+ * height. When there are more samples than pixels, each pixel column shows
+ * the minimum and maximum of an aligned block of samples, which the buffer
+ * keeps up to date, so a redraw depends on the width only and no peak is
+ * lost. The oldest block is left out while it is partly overwritten.
+ */
+class LivePlotView extends View {
+
+    private static final int[] COLORS = {
+        Color.GREEN, Color.YELLOW, Color.CYAN, Color.MAGENTA, Color.RED, Color.WHITE
+    };
+
+    private SampleBuffer mSamples;
+    private final Paint mPaint = new Paint();
+    private final float[] mMinMax = new float[2];
+    private float[] mMin = new float[0];
+    private float[] mMax = new float[0];
+    private float[] mLines = new float[0];
+
+    LivePlotView(Context context) {
+        super(context);
+        mPaint.setStrokeWidth(1);
+    }
+
+    void setSampleBuffer(SampleBuffer samples) {
+        mSamples = samples;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        final SampleBuffer samples = mSamples;
+        final int size = samples != null ? samples.getSize() : 0;
+        final int width = getWidth();
+        final int height = getHeight();
+        if (size == 0 || width == 0 || height == 0) {
+            return;
+        }
+
+        int blockSize = 1;
+        while ((size + blockSize - 1) / blockSize > width) {
+            blockSize *= 2;
+        }
+        final long sampleCount = samples.getSampleCount();
+        final long lastBlock = (sampleCount - 1) / blockSize;
+        final long firstBlock = Math.min(lastBlock,
+                (sampleCount - size + blockSize - 1) / blockSize);
+        final int buckets = (int) (lastBlock - firstBlock + 1);
+        if (mMin.length < buckets) {
+            mMin = new float[width];
+            mMax = new float[width];
+            // A vertical min-max segment and one joining the previous bucket.
+            mLines = new float[width * 8];
+        }
+        final float xStep = buckets > 1 ? (width - 1f) / (buckets - 1) : 0;
+
+        for (int column = 0; column < samples.getSchema().getFieldCount(); column++) {
+            float low = Float.POSITIVE_INFINITY;
+            float high = Float.NEGATIVE_INFINITY;
+            for (int b = 0; b < buckets; b++) {
+                samples.getBlockRange(column, blockSize, firstBlock + b, mMinMax);
+                mMin[b] = mMinMax[0];
+                mMax[b] = mMinMax[1];
+                low = Math.min(low, mMinMax[0]);
+                high = Math.max(high, mMinMax[1]);
+            }
+            if (!(high > low)) {
+                // Flat, or nothing but NaN; center it.
+                low -= 1;
+                high += 1;
+            }
+            final float scale = (height - 1) / (high - low);
+
+            int count = 0;
+            boolean joined = false;
+            float previousX = 0;
+            float previousTop = 0;
+            float previousBottom = 0;
+            for (int b = 0; b < buckets; b++) {
+                if (mMin[b] > mMax[b]) {
+                    // Only NaN in this bucket.
+                    joined = false;
+                    continue;
+                }
+                final float x = b * xStep;
+                final float top = height - 1 - (mMax[b] - low) * scale;
+                final float bottom = height - 1 - (mMin[b] - low) * scale;
+                mLines[count++] = x;
+                mLines[count++] = top;
+                mLines[count++] = x;
+                mLines[count++] = bottom;
+                if (joined) {
+                    // Join the closest ends, which for one sample per
+                    // bucket is a plain line from sample to sample.
+                    final float previousY = clamp((top + bottom) / 2, previousTop, previousBottom);
+                    mLines[count++] = previousX;
+                    mLines[count++] = previousY;
+                    mLines[count++] = x;
+                    mLines[count++] = clamp(previousY, top, bottom);
+                }
+                previousX = x;
+                previousTop = top;
+                previousBottom = bottom;
+                joined = true;
+            }
+            mPaint.setColor(COLORS[column % COLORS.length]);
+            canvas.drawLines(mLines, 0, count, mPaint);
+        }
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Decides how long the receiver thread pauses after an IN transfer that
+ * brought no data, so that a silent or failing device does not keep a core
+ * busy. Transfers that return nothing at once back off exponentially and
+ * data resets the backoff. After too many errors in a row the device is
+ * given up.
+ */
+class ReceiveScheduler {
+
+    // Bounds every bulkTransfer() so the thread notices shutdown.
+    static final int IN_TRANSFER_TIMEOUT_MS = 500;
+    // Also bounds the error backoff, which doubles from 1 ms up to 256 ms.
+    static final int MAX_CONSECUTIVE_ERRORS = 10;
+
+    private static final long MAX_IDLE_BACKOFF_MS = 32;
+
+    private long mIdleBackoffMs;
+    private long mErrorBackoffMs;
+    private int mConsecutiveErrors;
+
+    /**
+     * A failed bulkTransfer() returns the same value for a timeout and an
+     * error; only a timeout takes about the whole timeout.
+     *
+     * @return true if a transfer that returned no data timed out
+     */
+    static boolean isTimeout(long elapsedNanos, int timeoutMs) {
+        return elapsedNanos >= timeoutMs * 900000L;
+    }
+
+    void onData() {
+        mIdleBackoffMs = 0;
+        mErrorBackoffMs = 0;
+        mConsecutiveErrors = 0;
+    }
+
+    /**
+     * The transfer waited the whole timeout, so the device is fine but has
+     * nothing to send, and the thread can go straight back to waiting.
+     */
+    void onTimeout() {
+        mErrorBackoffMs = 0;
+        mConsecutiveErrors = 0;
+    }
+
+    /**
+     * @return milliseconds to pause after a transfer that completed
+     *         without data
+     */
+    long onZeroLengthRead() {
+        mIdleBackoffMs = Math.min(MAX_IDLE_BACKOFF_MS, Math.max(1, mIdleBackoffMs * 2));
+        return mIdleBackoffMs;
+    }
+
+    /**
+     * @return milliseconds to pause after a failed transfer, or -1 if there
+     *         have been too many failures in a row to go on
+     */
+    long onError() {
+        if (++mConsecutiveErrors >= MAX_CONSECUTIVE_ERRORS) {
+            return -1;
+        }
+        mErrorBackoffMs = Math.max(1, mErrorBackoffMs * 2);
+        return mErrorBackoffMs;
+    }
+}
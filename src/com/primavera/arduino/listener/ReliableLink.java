@@ -0,0 +1,429 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Optional transport that delivers the byte stream in both directions
+ * exactly once and in order, over a serial line that may drop or corrupt
+ * bytes. The reference sketch in arduino/ReliableLink implements the other
+ * end.
+ *
+ * Every packet is COBS encoded and zero terminated:
+ *
+ * <pre>
+ * type     TYPE_DATA, TYPE_ACK, TYPE_RESET or TYPE_RESET_ACK
+ * seq      sequence number of a data packet, modulo 256
+ * ack      next sequence number expected from the other side
+ * sack     bit i set if packet ack + 1 + i has been received
+ * payload  data packets only, at most MAX_PAYLOAD bytes
+ * crc      CRC-16/CCITT-FALSE of all bytes above, little endian
+ * </pre>
+ *
+ * Up to WINDOW_SIZE data packets may be unacknowledged. Every packet
+ * carries the current ack, and packets that a SACK shows to be missing are
+ * sent again without waiting for their timeout. The retransmission timeout
+ * follows the smoothed round trip time and its variation, as in TCP.
+ *
+ * A reset packet restarts the sequence numbers on both sides. The app
+ * sends one when reliable mode is turned on, and the sketch sends one when
+ * it starts. The other side answers with a reset ack, and until that
+ * arrives the reset is sent again on every timeout and all other packets
+ * are ignored, as they may be numbered from before the reset. Both sides
+ * then send the data not yet acknowledged again, numbered from zero.
+ */
+class ReliableLink {
+
+    static final int WINDOW_SIZE = 8;
+    static final int MAX_PAYLOAD = 64;
+
+    private static final int TYPE_DATA = 0;
+    private static final int TYPE_ACK = 1;
+    private static final int TYPE_RESET = 2;
+    private static final int TYPE_RESET_ACK = 3;
+    private static final int HEADER_SIZE = 4;
+    private static final int CRC_SIZE = 2;
+
+    private static final long INITIAL_RTO_NANOS = 250000000L;
+    private static final long MIN_RTO_NANOS = 20000000L;
+    private static final long MAX_RTO_NANOS = 4000000000L;
+
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < CRC_TABLE.length; i++) {
+            int crc = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private final LinkMetrics mMetrics;
+    private final FrameDecoder mDecoder = FrameDecoder.create(FrameDecoder.FRAMING_COBS);
+    private final byte[] mPacket = new byte[HEADER_SIZE + MAX_PAYLOAD + CRC_SIZE];
+
+    // Sending side, indexed by sequence number modulo WINDOW_SIZE.
+    private final byte[][] mSentPayloads = new byte[WINDOW_SIZE][];
+    private final long[] mSentTimes = new long[WINDOW_SIZE];
+    private final long[] mDeadlines = new long[WINDOW_SIZE];
+    private final boolean[] mRetransmitted = new boolean[WINDOW_SIZE];
+    private final boolean[] mSacked = new boolean[WINDOW_SIZE];
+    private final boolean[] mSackHole = new boolean[WINDOW_SIZE];
+    private int mSendBase;
+    private int mNextSeq;
+    private long mSmoothedRtt = -1;
+    private long mRttVariation;
+    private long mRto = INITIAL_RTO_NANOS;
+    // Our reset, until the other side acknowledges it.
+    private boolean mResetPending = true;
+    private boolean mResetSent;
+    private long mResetDeadline;
+    private boolean mResetAckPending;
+
+    // Receiving side.
+    private final byte[][] mReceivedPayloads = new byte[WINDOW_SIZE][];
+    private final long[] mReceivedTimes = new long[WINDOW_SIZE];
+    private int mReceiveBase;
+    private boolean mAckPending;
+
+    // Set while receive() runs.
+    private FrameDecoder.FrameSink mPayloadSink;
+    private boolean mWakeSender;
+
+    private final FrameDecoder.FrameSink mPacketSink = new FrameDecoder.FrameSink() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length, long timestampNanos) {
+            onPacket(buffer, offset, length, timestampNanos);
+        }
+    };
+
+    ReliableLink(LinkMetrics metrics) {
+        mMetrics = metrics;
+        mDecoder.setErrorCounter(metrics.mCorruptPackets);
+    }
+
+    static int crc16(byte[] src, int off, int len) {
+        int crc = 0xFFFF;
+        for (int i = off; i < off + len; i++) {
+            crc = ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ src[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * Called on the dispatcher thread with received bytes. Payloads are
+     * passed to the sink in order, each with the time its packet arrived.
+     *
+     * @return true if the sender thread has something to send now
+     */
+    synchronized boolean receive(byte[] src, int off, int len, long timestampNanos, FrameDecoder.FrameSink payloadSink) {
+        mPayloadSink = payloadSink;
+        mWakeSender = false;
+        mDecoder.decode(src, off, len, timestampNanos, mPacketSink);
+        mPayloadSink = null;
+        return mWakeSender;
+    }
+
+    /**
+     * @return the reset packet if it is due to be sent, or sent again
+     *         because it has not been acknowledged, otherwise null
+     */
+    synchronized byte[] pollReset(long now) {
+        if (!mResetPending || (mResetSent && mResetDeadline - now > 0)) {
+            return null;
+        }
+        if (mResetSent) {
+            mRto = Math.min(mRto * 2, MAX_RTO_NANOS);
+            mMetrics.mRetransmissions.incrementAndGet();
+        }
+        mResetSent = true;
+        mResetDeadline = now + mRto;
+        return encode(TYPE_RESET, 0, null, 0);
+    }
+
+    /**
+     * @return the answer to a reset from the other side, or null. It must
+     *         be sent before any data packet.
+     */
+    synchronized byte[] pollResetAck() {
+        if (!mResetAckPending) {
+            return null;
+        }
+        mResetAckPending = false;
+        return encode(TYPE_RESET_ACK, 0, null, 0);
+    }
+
+    /**
+     * @return true if the window has room for another data packet
+     */
+    synchronized boolean canSend() {
+        return !mResetPending && mNextSeq - mSendBase < WINDOW_SIZE;
+    }
+
+    /**
+     * Must only be called when {@link #canSend()} returns true.
+     *
+     * @return encoded data packet holding a copy of the payload
+     */
+    synchronized byte[] send(byte[] payload, int length, long now) {
+        final int slot = mNextSeq & (WINDOW_SIZE - 1);
+        mSentPayloads[slot] = new byte[length];
+        System.arraycopy(payload, 0, mSentPayloads[slot], 0, length);
+        mSentTimes[slot] = now;
+        mDeadlines[slot] = now + mRto;
+        mRetransmitted[slot] = false;
+        mSacked[slot] = false;
+        mSackHole[slot] = false;
+        return encode(TYPE_DATA, mNextSeq++, mSentPayloads[slot], length);
+    }
+
+    /**
+     * @return encoded data packet that is due to be sent again, or null
+     */
+    synchronized byte[] pollRetransmission(long now) {
+        if (mResetPending) {
+            return null;
+        }
+        for (int seq = mSendBase; seq < mNextSeq; seq++) {
+            final int slot = seq & (WINDOW_SIZE - 1);
+            if (mSacked[slot] || mDeadlines[slot] - now > 0) {
+                continue;
+            }
+            // Back off once per timeout of the oldest packet, not for every
+            // packet sent after it, and not for holes reported by a SACK.
+            if (seq == mSendBase && !mSackHole[slot]) {
+                mRto = Math.min(mRto * 2, MAX_RTO_NANOS);
+            }
+            mSentTimes[slot] = now;
+            mDeadlines[slot] = now + mRto;
+            mRetransmitted[slot] = true;
+            mSackHole[slot] = false;
+            mMetrics.mRetransmissions.incrementAndGet();
+            return encode(TYPE_DATA, seq, mSentPayloads[slot], mSentPayloads[slot].length);
+        }
+        return null;
+    }
+
+    /**
+     * @return a pure ack packet if received data has not been acknowledged
+     *         by an outgoing packet yet, otherwise null
+     */
+    synchronized byte[] pollAck() {
+        return mAckPending ? encode(TYPE_ACK, 0, null, 0) : null;
+    }
+
+    /**
+     * @return milliseconds until the next retransmission timeout, or -1 if
+     *         no data is waiting for an ack
+     */
+    synchronized long millisUntilRetransmission(long now) {
+        if (mResetPending) {
+            return mResetSent ? (Math.max(0, mResetDeadline - now) + 999999) / 1000000 : 0;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (int seq = mSendBase; seq < mNextSeq; seq++) {
+            final int slot = seq & (WINDOW_SIZE - 1);
+            if (!mSacked[slot]) {
+                earliest = Math.min(earliest, Math.max(0, mDeadlines[slot] - now));
+            }
+        }
+        return earliest == Long.MAX_VALUE ? -1 : (earliest + 999999) / 1000000;
+    }
+
+    /**
+     * @return current retransmission timeout in microseconds
+     */
+    synchronized long getRtoMicros() {
+        return mRto / 1000;
+    }
+
+    private void onPacket(byte[] buffer, int offset, int length, long timestampNanos) {
+        if (length < HEADER_SIZE + CRC_SIZE) {
+            mMetrics.mCorruptPackets.incrementAndGet();
+            return;
+        }
+        final int crcOffset = offset + length - CRC_SIZE;
+        final int crc = (buffer[crcOffset] & 0xFF) | (buffer[crcOffset + 1] & 0xFF) << 8;
+        if (crc != crc16(buffer, offset, length - CRC_SIZE)) {
+            mMetrics.mCorruptPackets.incrementAndGet();
+            return;
+        }
+
+        final int type = buffer[offset] & 0xFF;
+        if (type == TYPE_RESET) {
+            onReset(timestampNanos);
+            return;
+        }
+        if (type == TYPE_RESET_ACK) {
+            if (mResetPending) {
+                mResetPending = false;
+                mWakeSender = true;
+            }
+            return;
+        }
+        if (mResetPending) {
+            // Numbered before the other side started over.
+            return;
+        }
+        onAck(buffer[offset + 2] & 0xFF, buffer[offset + 3] & 0xFF, timestampNanos);
+        if (type == TYPE_DATA) {
+            onData(buffer[offset + 1] & 0xFF, buffer, offset + HEADER_SIZE, length - HEADER_SIZE - CRC_SIZE, timestampNanos);
+        }
+    }
+
+    private void onAck(int ack, int sack, long now) {
+        final int inFlight = mNextSeq - mSendBase;
+        final int acked = (ack - mSendBase) & 0xFF;
+        if (acked > inFlight) {
+            // Older than an ack already seen.
+            return;
+        }
+
+        long rttSample = -1;
+        for (int i = 0; i < acked; i++) {
+            final int slot = (mSendBase + i) & (WINDOW_SIZE - 1);
+            // Karn's algorithm: the ack of a retransmitted packet may belong
+            // to either copy, so it says nothing about the round trip time.
+            if (!mRetransmitted[slot]) {
+                rttSample = now - mSentTimes[slot];
+            }
+            mSentPayloads[slot] = null;
+        }
+        mSendBase += acked;
+        if (acked > 0) {
+            mWakeSender = true;
+        }
+        if (rttSample >= 0) {
+            updateRto(rttSample);
+        }
+
+        int sackedUpTo = 0;
+        for (int i = 0; i < WINDOW_SIZE - 1 && mSendBase + 1 + i < mNextSeq; i++) {
+            if ((sack & 1 << i) != 0) {
+                mSacked[(mSendBase + 1 + i) & (WINDOW_SIZE - 1)] = true;
+                sackedUpTo = i + 1;
+            }
+        }
+        // Packets before one that arrived are most likely lost. Send each of
+        // them again, unless its last copy may still be on the way.
+        final long minAge = mSmoothedRtt >= 0 ? mSmoothedRtt : mRto;
+        for (int seq = mSendBase; seq < mSendBase + sackedUpTo; seq++) {
+            final int slot = seq & (WINDOW_SIZE - 1);
+            if (!mSacked[slot] && !mSackHole[slot] && now - mSentTimes[slot] > minAge) {
+                mDeadlines[slot] = now;
+                mSackHole[slot] = true;
+                mWakeSender = true;
+            }
+        }
+    }
+
+    private void updateRto(long rttSample) {
+        if (mSmoothedRtt < 0) {
+            mSmoothedRtt = rttSample;
+            mRttVariation = rttSample / 2;
+        } else {
+            final long error = rttSample - mSmoothedRtt;
+            mSmoothedRtt += error / 8;
+            mRttVariation += (Math.abs(error) - mRttVariation) / 4;
+        }
+        mRto = Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, mSmoothedRtt + 4 * mRttVariation));
+    }
+
+    private void onData(int seq, byte[] buffer, int offset, int length, long timestampNanos) {
+        mAckPending = true;
+        mWakeSender = true;
+        final int distance = (seq - mReceiveBase) & 0xFF;
+        if (distance >= WINDOW_SIZE) {
+            // Already delivered; the ack that was sent for it got lost.
+            return;
+        }
+        final int slot = (mReceiveBase + distance) & (WINDOW_SIZE - 1);
+        if (mReceivedPayloads[slot] == null) {
+            mReceivedPayloads[slot] = new byte[length];
+            System.arraycopy(buffer, offset, mReceivedPayloads[slot], 0, length);
+            mReceivedTimes[slot] = timestampNanos;
+        }
+
+        int slotToDeliver;
+        while (mReceivedPayloads[slotToDeliver = mReceiveBase & (WINDOW_SIZE - 1)] != null) {
+            final byte[] payload = mReceivedPayloads[slotToDeliver];
+            mReceivedPayloads[slotToDeliver] = null;
+            mReceiveBase = (mReceiveBase + 1) & 0xFF;
+            mPayloadSink.onFrame(payload, 0, payload.length, mReceivedTimes[slotToDeliver]);
+        }
+    }
+
+    /**
+     * The other side has started over, so restart the receive sequence,
+     * renumber the unacknowledged data from zero and acknowledge the reset.
+     * A reset sent again because our ack got lost finds nothing acknowledged
+     * since the first one, so the numbering stays the same.
+     */
+    private void onReset(long now) {
+        final int inFlight = mNextSeq - mSendBase;
+        final byte[][] unacked = new byte[inFlight][];
+        for (int i = 0; i < inFlight; i++) {
+            final int slot = (mSendBase + i) & (WINDOW_SIZE - 1);
+            unacked[i] = mSentPayloads[slot];
+            mSentPayloads[slot] = null;
+        }
+        mSendBase = 0;
+        mNextSeq = 0;
+        for (int i = 0; i < inFlight; i++) {
+            final int slot = mNextSeq++ & (WINDOW_SIZE - 1);
+            mSentPayloads[slot] = unacked[i];
+            mSentTimes[slot] = now;
+            mDeadlines[slot] = now;
+            mRetransmitted[slot] = true;
+            mSacked[slot] = false;
+            mSackHole[slot] = false;
+        }
+
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            mReceivedPayloads[i] = null;
+        }
+        mReceiveBase = 0;
+        mResetAckPending = true;
+        mWakeSender = true;
+    }
+
+    private int getSackBits() {
+        int sack = 0;
+        for (int i = 0; i < WINDOW_SIZE - 1; i++) {
+            if (mReceivedPayloads[(mReceiveBase + 1 + i) & (WINDOW_SIZE - 1)] != null) {
+                sack |= 1 << i;
+            }
+        }
+        return sack;
+    }
+
+    private byte[] encode(int type, int seq, byte[] payload, int length) {
+        mPacket[0] = (byte) type;
+        mPacket[1] = (byte) seq;
+        mPacket[2] = (byte) mReceiveBase;
+        mPacket[3] = (byte) getSackBits();
+        if (length > 0) {
+            System.arraycopy(payload, 0, mPacket, HEADER_SIZE, length);
+        }
+        final int crc = crc16(mPacket, 0, HEADER_SIZE + length);
+        mPacket[HEADER_SIZE + length] = (byte) crc;
+        mPacket[HEADER_SIZE + length + 1] = (byte) (crc >> 8);
+        mAckPending = false;
+        return FrameEncoder.encode(FrameDecoder.FRAMING_COBS, mPacket, 0, HEADER_SIZE + length + CRC_SIZE);
+    }
+}
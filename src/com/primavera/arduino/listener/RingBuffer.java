@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Preallocated single-producer/single-consumer ring of byte chunks.
+ *
+ * The producer (the USB receiver thread) copies each transfer into the ring
+ * together with its timestamp, the consumer reads whole chunks back out into
+ * its own buffer. Neither side allocates. When the ring is full the incoming
+ * chunk is dropped and counted as an overrun.
+ */
+class RingBuffer {
+
+    private final byte[] mData;
+    private final int mDataMask;
+    private final int[] mChunkLengths;
+    private final long[] mChunkTimestamps;
+    private final int mChunkMask;
+
+    // Written by the producer only.
+    private volatile long mDataHead;
+    private volatile long mChunkHead;
+    private volatile long mTotalBytes;
+    private volatile long mOverruns;
+    private volatile long mOverrunBytes;
+    private volatile int mHighWaterMark;
+
+    // Written by the consumer only.
+    private volatile long mDataTail;
+    private volatile long mChunkTail;
+    private volatile boolean mConsumerWaiting;
+
+    private final Object mLock = new Object();
+
+    /**
+     * @param dataCapacity size of the byte area, rounded up to a power of two
+     * @param chunkCapacity max number of queued chunks, rounded up to a power of two
+     */
+    RingBuffer(int dataCapacity, int chunkCapacity) {
+        mData = new byte[roundUpToPowerOfTwo(dataCapacity)];
+        mDataMask = mData.length - 1;
+        mChunkLengths = new int[roundUpToPowerOfTwo(chunkCapacity)];
+        mChunkTimestamps = new long[mChunkLengths.length];
+        mChunkMask = mChunkLengths.length - 1;
+    }
+
+    private static int roundUpToPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value) {
+            result <<= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Producer side. Copies len bytes from src into the ring as one chunk.
+     *
+     * @return false if the chunk did not fit and was dropped
+     */
+    boolean write(byte[] src, int off, int len, long timestampNanos) {
+        if (!hasRoomFor(len)) {
+            return false;
+        }
+
+        final int start = (int) mDataHead & mDataMask;
+        final int firstPart = Math.min(len, mData.length - start);
+        System.arraycopy(src, off, mData, start, firstPart);
+        System.arraycopy(src, off + firstPart, mData, 0, len - firstPart);
+
+        publish(len, timestampNanos);
+        return true;
+    }
+
+    /**
+     * Producer side. Copies len bytes from the position of src into the ring
+     * as one chunk. Works without allocation for direct buffers too.
+     *
+     * @return false if the chunk did not fit and was dropped
+     */
+    boolean write(ByteBuffer src, int len, long timestampNanos) {
+        if (!hasRoomFor(len)) {
+            return false;
+        }
+
+        final int start = (int) mDataHead & mDataMask;
+        final int firstPart = Math.min(len, mData.length - start);
+        src.get(mData, start, firstPart);
+        src.get(mData, 0, len - firstPart);
+
+        publish(len, timestampNanos);
+        return true;
+    }
+
+    private boolean hasRoomFor(int len) {
+        if (len > mData.length - (int) (mDataHead - mDataTail)
+                || mChunkHead - mChunkTail >= mChunkLengths.length) {
+            mOverruns++;
+            mOverrunBytes += len;
+            return false;
+        }
+        return true;
+    }
+
+    private void publish(int len, long timestampNanos) {
+        final long dataHead = mDataHead;
+        final long chunkHead = mChunkHead;
+        final int chunkIndex = (int) chunkHead & mChunkMask;
+        mChunkLengths[chunkIndex] = len;
+        mChunkTimestamps[chunkIndex] = timestampNanos;
+
+        mTotalBytes += len;
+        final int used = (int) (dataHead + len - mDataTail);
+        if (used > mHighWaterMark) {
+            mHighWaterMark = used;
+        }
+
+        // Publish data before the chunk descriptor, the consumer reads them in
+        // the opposite order.
+        mDataHead = dataHead + len;
+        mChunkHead = chunkHead + 1;
+
+        if (mConsumerWaiting) {
+            synchronized (mLock) {
+                mLock.notify();
+            }
+        }
+    }
+
+    /**
+     * Consumer side.
+     *
+     * @return length of the next chunk, or -1 if the ring is empty
+     */
+    int nextChunkLength() {
+        final long chunkTail = mChunkTail;
+        if (chunkTail == mChunkHead) {
+            return -1;
+        }
+        return mChunkLengths[(int) chunkTail & mChunkMask];
+    }
+
+    /**
+     * Consumer side. Only valid when {@link #nextChunkLength()} is not -1.
+     */
+    long nextChunkTimestamp() {
+        return mChunkTimestamps[(int) mChunkTail & mChunkMask];
+    }
+
+    /**
+     * Consumer side. Copies the next chunk into dst, which must have room
+     * for {@link #nextChunkLength()} bytes at off.
+     *
+     * @return length of the chunk, or -1 if the ring is empty
+     */
+    int readChunk(byte[] dst, int off) {
+        final long chunkTail = mChunkTail;
+        if (chunkTail == mChunkHead) {
+            return -1;
+        }
+        final int len = mChunkLengths[(int) chunkTail & mChunkMask];
+        final long dataTail = mDataTail;
+
+        final int start = (int) dataTail & mDataMask;
+        final int firstPart = Math.min(len, mData.length - start);
+        System.arraycopy(mData, start, dst, off, firstPart);
+        System.arraycopy(mData, 0, dst, off + firstPart, len - firstPart);
+
+        mDataTail = dataTail + len;
+        mChunkTail = chunkTail + 1;
+        return len;
+    }
+
+    /**
+     * Consumer side. Blocks until a chunk is available, the timeout expires
+     * or {@link #wakeUp()} is called.
+     */
+    void awaitData(long timeoutMs) throws InterruptedException {
+        synchronized (mLock) {
+            mConsumerWaiting = true;
+            try {
+                if (mChunkTail == mChunkHead) {
+                    mLock.wait(timeoutMs);
+                }
+            } finally {
+                mConsumerWaiting = false;
+            }
+        }
+    }
+
+    void wakeUp() {
+        synchronized (mLock) {
+            mLock.notifyAll();
+        }
+    }
+
+    int getCapacity() {
+        return mData.length;
+    }
+
+    /**
+     * @return number of bytes currently queued in the ring
+     */
+    int getOccupancy() {
+        return (int) (mDataHead - mDataTail);
+    }
+
+    int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /**
+     * @return number of chunks dropped because the ring was full
+     */
+    long getOverruns() {
+        return mOverruns;
+    }
+
+    long getOverrunBytes() {
+        return mOverrunBytes;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import android.os.Handler;
+import android.util.SparseArray;
+
+/**
+ * Calls waiting for their response. Request and response frames start with
+ * {@link #RPC_FRAME_TYPE} and a 16 bit little endian correlation id, which
+ * the board copies from the request into its response, followed by the
+ * body. Ids are handed out in turn, so any number of calls up to
+ * {@link #MAX_PENDING_CALLS} may be in flight at once.
+ */
+class RpcTracker {
+
+    static final int RPC_FRAME_TYPE = 0xFE;
+    static final int HEADER_SIZE = 3;
+    static final int MAX_PENDING_CALLS = 0x10000;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_TIMEOUT = 1;
+    static final int STATUS_REJECTED = 2;
+    static final int STATUS_NO_DEVICE = 3;
+    static final int STATUS_UNSUPPORTED_FRAMING = 4;
+
+    interface Listener {
+        /**
+         * Called on the dispatcher thread for responses, and on the
+         * handler's thread for timeouts.
+         *
+         * @param body response body, or null unless status is {@link #STATUS_OK}
+         */
+        void onCallCompleted(Call call, int status, byte[] body, long roundTripNanos);
+    }
+
+    static class Call {
+        final long mRequestId;
+        final int mDeviceId;
+        final String mPackage;
+        int mCorrelationId;
+        long mStartNanos;
+        Runnable mTimeout;
+
+        Call(long requestId, int deviceId, String packageName) {
+            mRequestId = requestId;
+            mDeviceId = deviceId;
+            mPackage = packageName;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Listener mListener;
+    private final SparseArray<Call> mPending = new SparseArray<Call>();
+    private volatile int mPendingCount;
+    private int mNextCorrelationId;
+
+    RpcTracker(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Assigns a correlation id to the call and starts its timeout.
+     *
+     * @return the request frame to send, or null if no id is free
+     */
+    synchronized byte[] start(final Call call, byte[] body, int timeoutMs) {
+        if (mPendingCount == MAX_PENDING_CALLS) {
+            return null;
+        }
+        while (mPending.get(mNextCorrelationId) != null) {
+            mNextCorrelationId = (mNextCorrelationId + 1) & 0xFFFF;
+        }
+        call.mCorrelationId = mNextCorrelationId;
+        mNextCorrelationId = (mNextCorrelationId + 1) & 0xFFFF;
+
+        byte[] frame = new byte[HEADER_SIZE + body.length];
+        frame[0] = (byte) RPC_FRAME_TYPE;
+        frame[1] = (byte) call.mCorrelationId;
+        frame[2] = (byte) (call.mCorrelationId >> 8);
+        System.arraycopy(body, 0, frame, HEADER_SIZE, body.length);
+
+        call.mTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (remove(call)) {
+                    mListener.onCallCompleted(call, STATUS_TIMEOUT, null, System.nanoTime() - call.mStartNanos);
+                }
+            }
+        };
+        mPending.put(call.mCorrelationId, call);
+        mPendingCount++;
+        call.mStartNanos = System.nanoTime();
+        mHandler.postDelayed(call.mTimeout, timeoutMs);
+        return frame;
+    }
+
+    /**
+     * Forgets a call whose request could not be sent.
+     */
+    void cancel(Call call) {
+        if (remove(call)) {
+            mHandler.removeCallbacks(call.mTimeout);
+        }
+    }
+
+    /**
+     * Forgets all calls without completing them.
+     */
+    synchronized void clear() {
+        for (int i = 0; i < mPending.size(); i++) {
+            mHandler.removeCallbacks(mPending.valueAt(i).mTimeout);
+        }
+        mPending.clear();
+        mPendingCount = 0;
+    }
+
+    /**
+     * Called on the dispatcher thread with every decoded frame.
+     *
+     * @return true if the frame answered a pending call and was consumed
+     */
+    boolean onFrame(int deviceId, byte[] buffer, int offset, int length, long timestampNanos) {
+        if (mPendingCount == 0 || length < HEADER_SIZE || (buffer[offset] & 0xFF) != RPC_FRAME_TYPE) {
+            return false;
+        }
+        final int correlationId = (buffer[offset + 1] & 0xFF) | (buffer[offset + 2] & 0xFF) << 8;
+        final Call call;
+        synchronized (this) {
+            call = mPending.get(correlationId);
+            if (call == null || call.mDeviceId != deviceId) {
+                return false;
+            }
+            mPending.remove(correlationId);
+            mPendingCount--;
+        }
+        mHandler.removeCallbacks(call.mTimeout);
+
+        byte[] body = new byte[length - HEADER_SIZE];
+        System.arraycopy(buffer, offset + HEADER_SIZE, body, 0, body.length);
+        mListener.onCallCompleted(call, STATUS_OK, body, timestampNanos - call.mStartNanos);
+        return true;
+    }
+
+    private synchronized boolean remove(Call call) {
+        if (mPending.get(call.mCorrelationId) != call) {
+            return false;
+        }
+        mPending.remove(call.mCorrelationId);
+        mPendingCount--;
+        return true;
+    }
+}
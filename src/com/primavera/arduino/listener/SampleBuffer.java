@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * The latest samples of a {@link SampleSchema}, decoded straight from the
+ * received bytes into one preallocated primitive array per field. Integer
+ * fields are kept in int arrays and float fields in float arrays, so adding
+ * samples allocates nothing. Only used on the main thread.
+ *
+ * For plotting, the minimum and maximum of every field are also kept for
+ * aligned blocks of MIN_BLOCK_SIZE samples, twice that, and so on up to the
+ * capacity. They are updated as samples are added, so the range of a whole
+ * block is found without looking at its samples.
+ */
+class SampleBuffer {
+
+    static final int MIN_BLOCK_SIZE = 16;
+
+    private final SampleSchema mSchema;
+    private final int mCapacity;
+    private final int[][] mIntColumns;
+    private final float[][] mFloatColumns;
+    // By field, then by level: block i of level l holds samples i * (MIN_BLOCK_SIZE << l) on.
+    private final float[][][] mBlockMin;
+    private final float[][][] mBlockMax;
+    private long mSampleCount;
+
+    // A sample split between two chunks of received data.
+    private final byte[] mPartialSample;
+    private int mPartialLength;
+
+    /**
+     * @param capacity number of samples kept, the oldest are overwritten;
+     *        a power of two of at least MIN_BLOCK_SIZE
+     */
+    SampleBuffer(SampleSchema schema, int capacity) {
+        if (capacity < MIN_BLOCK_SIZE || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        mSchema = schema;
+        mCapacity = capacity;
+        mIntColumns = new int[schema.getFieldCount()][];
+        mFloatColumns = new float[schema.getFieldCount()][];
+        for (int i = 0; i < schema.getFieldCount(); i++) {
+            if (schema.mTypes[i] == SampleSchema.TYPE_FLOAT32) {
+                mFloatColumns[i] = new float[capacity];
+            } else {
+                mIntColumns[i] = new int[capacity];
+            }
+        }
+        mPartialSample = new byte[schema.mSampleSize];
+
+        final int levels = Integer.numberOfTrailingZeros(capacity / MIN_BLOCK_SIZE) + 1;
+        mBlockMin = new float[schema.getFieldCount()][levels][];
+        mBlockMax = new float[schema.getFieldCount()][levels][];
+        for (int i = 0; i < schema.getFieldCount(); i++) {
+            for (int level = 0; level < levels; level++) {
+                mBlockMin[i][level] = new float[capacity / (MIN_BLOCK_SIZE << level)];
+                mBlockMax[i][level] = new float[capacity / (MIN_BLOCK_SIZE << level)];
+            }
+        }
+    }
+
+    SampleSchema getSchema() {
+        return mSchema;
+    }
+
+    /**
+     * @return number of samples held, at most the capacity
+     */
+    int getSize() {
+        return (int) Math.min(mSampleCount, mCapacity);
+    }
+
+    /**
+     * @return number of samples decoded since the buffer was created
+     */
+    long getSampleCount() {
+        return mSampleCount;
+    }
+
+    void add(byte[] data, int off, int len) {
+        final int sampleSize = mSchema.mSampleSize;
+        if (mPartialLength > 0) {
+            final int n = Math.min(len, sampleSize - mPartialLength);
+            System.arraycopy(data, off, mPartialSample, mPartialLength, n);
+            mPartialLength += n;
+            off += n;
+            len -= n;
+            if (mPartialLength < sampleSize) {
+                return;
+            }
+            decode(mPartialSample, 0);
+            mPartialLength = 0;
+        }
+        while (len >= sampleSize) {
+            decode(data, off);
+            off += sampleSize;
+            len -= sampleSize;
+        }
+        System.arraycopy(data, off, mPartialSample, 0, len);
+        mPartialLength = len;
+    }
+
+    /**
+     * Drops a partly received sample, for when the data that follows does
+     * not continue it.
+     */
+    void dropPartialSample() {
+        mPartialLength = 0;
+    }
+
+    private void decode(byte[] src, int off) {
+        final int index = (int) (mSampleCount % mCapacity);
+        for (int i = 0; i < mSchema.mTypes.length; i++) {
+            final int pos = off + mSchema.mOffsets[i];
+            final boolean bigEndian = mSchema.mBigEndian[i];
+            switch (mSchema.mTypes[i]) {
+            case SampleSchema.TYPE_INT8:
+                mIntColumns[i][index] = src[pos];
+                break;
+            case SampleSchema.TYPE_UINT8:
+                mIntColumns[i][index] = src[pos] & 0xFF;
+                break;
+            case SampleSchema.TYPE_INT16:
+                mIntColumns[i][index] = (short) read16(src, pos, bigEndian);
+                break;
+            case SampleSchema.TYPE_UINT16:
+                mIntColumns[i][index] = read16(src, pos, bigEndian);
+                break;
+            case SampleSchema.TYPE_INT32:
+                mIntColumns[i][index] = read32(src, pos, bigEndian);
+                break;
+            case SampleSchema.TYPE_FLOAT32:
+                mFloatColumns[i][index] = Float.intBitsToFloat(read32(src, pos, bigEndian));
+                break;
+            }
+            updateBlocks(i, mFloatColumns[i] != null ? mFloatColumns[i][index] : mIntColumns[i][index]);
+        }
+        mSampleCount++;
+    }
+
+    private void updateBlocks(int column, float value) {
+        for (int level = 0; level < mBlockMin[column].length; level++) {
+            final float[] blockMin = mBlockMin[column][level];
+            final float[] blockMax = mBlockMax[column][level];
+            final int shift = Integer.numberOfTrailingZeros(MIN_BLOCK_SIZE) + level;
+            final int block = (int) (mSampleCount >>> shift) & (blockMin.length - 1);
+            if ((mSampleCount & ((1L << shift) - 1)) == 0) {
+                // First sample of the block, which replaces an old one.
+                blockMin[block] = Float.POSITIVE_INFINITY;
+                blockMax[block] = Float.NEGATIVE_INFINITY;
+            }
+            // NaN compares false and is left out.
+            if (value < blockMin[block]) {
+                blockMin[block] = value;
+            }
+            if (value > blockMax[block]) {
+                blockMax[block] = value;
+            }
+        }
+    }
+
+    /**
+     * Finds the smallest and largest value of a field in the samples
+     * numbered block * blockSize up to (block + 1) * blockSize, counting
+     * from the first sample ever added. Samples no longer or not yet held
+     * are left out. Blocks of at least MIN_BLOCK_SIZE samples are looked up
+     * without a scan, unless the oldest samples of the block were
+     * overwritten.
+     *
+     * @param blockSize a power of two
+     * @param minMax receives the minimum at 0 and the maximum at 1, which
+     *        are infinite and in the wrong order if there is no value
+     */
+    void getBlockRange(int column, int blockSize, long block, float[] minMax) {
+        final long oldest = mSampleCount - getSize();
+        final long from = block * blockSize;
+        if (blockSize >= MIN_BLOCK_SIZE && blockSize <= mCapacity && from >= oldest) {
+            final int level = Integer.numberOfTrailingZeros(blockSize / MIN_BLOCK_SIZE);
+            final float[] blockMin = mBlockMin[column][level];
+            final int index = (int) block & (blockMin.length - 1);
+            minMax[0] = blockMin[index];
+            minMax[1] = mBlockMax[column][level][index];
+            return;
+        }
+        final long start = Math.max(from, oldest);
+        final long end = Math.min(from + blockSize, mSampleCount);
+        if (start >= end) {
+            minMax[0] = Float.POSITIVE_INFINITY;
+            minMax[1] = Float.NEGATIVE_INFINITY;
+            return;
+        }
+        getRange(column, (int) (start - oldest), (int) (end - oldest), minMax);
+    }
+
+    private static int read16(byte[] src, int pos, boolean bigEndian) {
+        if (bigEndian) {
+            return (src[pos] & 0xFF) << 8 | (src[pos + 1] & 0xFF);
+        }
+        return (src[pos] & 0xFF) | (src[pos + 1] & 0xFF) << 8;
+    }
+
+    private static int read32(byte[] src, int pos, boolean bigEndian) {
+        if (bigEndian) {
+            return read16(src, pos, true) << 16 | read16(src, pos + 2, true);
+        }
+        return read16(src, pos, false) | read16(src, pos + 2, false) << 16;
+    }
+
+    /**
+     * Finds the smallest and largest value of a field in held samples from
+     * (inclusive) to to (exclusive), where 0 is the oldest one.
+     *
+     * @param minMax receives the minimum at 0 and the maximum at 1
+     */
+    void getRange(int column, int from, int to, float[] minMax) {
+        minMax[0] = Float.POSITIVE_INFINITY;
+        minMax[1] = Float.NEGATIVE_INFINITY;
+        final int oldest = (int) ((mSampleCount - getSize()) % mCapacity);
+        int start = (oldest + from) % mCapacity;
+        int count = to - from;
+        while (count > 0) {
+            final int n = Math.min(count, mCapacity - start);
+            if (mFloatColumns[column] != null) {
+                scan(mFloatColumns[column], start, start + n, minMax);
+            } else {
+                scan(mIntColumns[column], start, start + n, minMax);
+            }
+            start = 0;
+            count -= n;
+        }
+    }
+
+    private static void scan(int[] column, int from, int to, float[] minMax) {
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = from; i < to; i++) {
+            final int value = column[i];
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        minMax[0] = Math.min(minMax[0], min);
+        minMax[1] = Math.max(minMax[1], max);
+    }
+
+    private static void scan(float[] column, int from, int to, float[] minMax) {
+        float min = minMax[0];
+        float max = minMax[1];
+        for (int i = from; i < to; i++) {
+            final float value = column[i];
+            if (value < min) {
+                min = value;
+            }
+            if (value > max) {
+                max = value;
+            }
+        }
+        minMax[0] = min;
+        minMax[1] = max;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.util.Locale;
+
+/**
+ * Layout of the fixed size binary samples a board streams, given as a comma
+ * separated list of field types such as "int16le,int16le,float32le". Each
+ * field becomes one column of a {@link SampleBuffer}.
+ */
+class SampleSchema {
+
+    static final int TYPE_INT8 = 0;
+    static final int TYPE_UINT8 = 1;
+    static final int TYPE_INT16 = 2;
+    static final int TYPE_UINT16 = 3;
+    static final int TYPE_INT32 = 4;
+    static final int TYPE_FLOAT32 = 5;
+
+    private static final String[] TYPE_NAMES = { "int8", "uint8", "int16", "uint16", "int32", "float32" };
+    private static final int[] TYPE_SIZES = { 1, 1, 2, 2, 4, 4 };
+
+    final int[] mTypes;
+    final int[] mOffsets;
+    final boolean[] mBigEndian;
+    final int mSampleSize;
+
+    private SampleSchema(int[] types, int[] offsets, boolean[] bigEndian, int sampleSize) {
+        mTypes = types;
+        mOffsets = offsets;
+        mBigEndian = bigEndian;
+        mSampleSize = sampleSize;
+    }
+
+    int getFieldCount() {
+        return mTypes.length;
+    }
+
+    /**
+     * Parses a schema. Multi-byte types take an "le" or "be" suffix and are
+     * little endian without one, like the AVR boards.
+     *
+     * @throws IllegalArgumentException if a field type is unknown
+     */
+    static SampleSchema parse(String schema) {
+        final String[] fields = schema.split(",");
+        final int[] types = new int[fields.length];
+        final int[] offsets = new int[fields.length];
+        final boolean[] bigEndian = new boolean[fields.length];
+        int sampleSize = 0;
+        for (int i = 0; i < fields.length; i++) {
+            String field = fields[i].trim().toLowerCase(Locale.US);
+            if (field.endsWith("be")) {
+                bigEndian[i] = true;
+                field = field.substring(0, field.length() - 2);
+            } else if (field.endsWith("le")) {
+                field = field.substring(0, field.length() - 2);
+            }
+            types[i] = -1;
+            for (int type = 0; type < TYPE_NAMES.length; type++) {
+                if (TYPE_NAMES[type].equals(field)) {
+                    types[i] = type;
+                }
+            }
+            if (types[i] < 0) {
+                throw new IllegalArgumentException("Unknown field type " + fields[i]);
+            }
+            offsets[i] = sampleSize;
+            sampleSize += TYPE_SIZES[types[i]];
+        }
+        return new SampleSchema(types, offsets, bigEndian, sampleSize);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder schema = new StringBuilder();
+        for (int i = 0; i < mTypes.length; i++) {
+            if (i > 0) {
+                schema.append(',');
+            }
+            schema.append(TYPE_NAMES[mTypes[i]]);
+            if (TYPE_SIZES[mTypes[i]] > 1) {
+                schema.append(mBigEndian[i] ? "be" : "le");
+            }
+        }
+        return schema.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded queue of data waiting to be sent, with an express lane that is
+ * always drained before the bulk lane. Each lane has its own byte limit so
+ * a bulk backlog can never block express data.
+ *
+ * The listener is told when the bulk lane rises above its high watermark
+ * and when it falls back below its low watermark, so senders can pause.
+ */
+class SendQueue {
+
+    interface LevelListener {
+        void onLevelChanged(boolean aboveHighWatermark, int queuedBytes, int capacity);
+    }
+
+    private final ArrayDeque<byte[]> mExpressLane = new ArrayDeque<byte[]>();
+    private final ArrayDeque<byte[]> mBulkLane = new ArrayDeque<byte[]>();
+    private final int mExpressCapacity;
+    private final int mBulkCapacity;
+    private final int mHighWatermark;
+    private final int mLowWatermark;
+    private final LevelListener mListener;
+
+    private int mExpressBytes;
+    private int mBulkBytes;
+    private boolean mAboveHighWatermark;
+
+    SendQueue(int expressCapacity, int bulkCapacity, LevelListener listener) {
+        mExpressCapacity = expressCapacity;
+        mBulkCapacity = bulkCapacity;
+        mHighWatermark = bulkCapacity * 3 / 4;
+        mLowWatermark = bulkCapacity / 4;
+        mListener = listener;
+    }
+
+    /**
+     * @return false if the lane is full and the data was rejected
+     */
+    boolean offer(byte[] data, boolean express) {
+        boolean levelChanged = false;
+        int bulkBytes;
+        synchronized (this) {
+            if (express) {
+                if (mExpressBytes + data.length > mExpressCapacity) {
+                    return false;
+                }
+                mExpressLane.add(data);
+                mExpressBytes += data.length;
+                return true;
+            }
+
+            if (mBulkBytes + data.length > mBulkCapacity) {
+                return false;
+            }
+            mBulkLane.add(data);
+            mBulkBytes += data.length;
+            bulkBytes = mBulkBytes;
+            if (!mAboveHighWatermark && mBulkBytes >= mHighWatermark) {
+                mAboveHighWatermark = true;
+                levelChanged = true;
+            }
+        }
+
+        if (levelChanged) {
+            mListener.onLevelChanged(true, bulkBytes, mBulkCapacity);
+        }
+        return true;
+    }
+
+    /**
+     * @return oldest express data, or null if the express lane is empty
+     */
+    synchronized byte[] pollExpress() {
+        final byte[] data = mExpressLane.poll();
+        if (data != null) {
+            mExpressBytes -= data.length;
+            notifyAll();
+        }
+        return data;
+    }
+
+    /**
+     * @return oldest bulk data, or null if the bulk lane is empty
+     */
+    byte[] pollBulk() {
+        boolean levelChanged = false;
+        byte[] data;
+        int bulkBytes;
+        synchronized (this) {
+            data = mBulkLane.poll();
+            if (data == null) {
+                return null;
+            }
+            mBulkBytes -= data.length;
+            bulkBytes = mBulkBytes;
+            notifyAll();
+            if (mAboveHighWatermark && mBulkBytes <= mLowWatermark) {
+                mAboveHighWatermark = false;
+                levelChanged = true;
+            }
+        }
+
+        if (levelChanged) {
+            mListener.onLevelChanged(false, bulkBytes, mBulkCapacity);
+        }
+        return data;
+    }
+
+    synchronized boolean hasExpress() {
+        return !mExpressLane.isEmpty();
+    }
+
+    /**
+     * Blocks until at most maxQueuedBytes are queued in both lanes together.
+     *
+     * @return false if that did not happen within timeoutMs
+     */
+    synchronized boolean awaitQueuedBytes(int maxQueuedBytes, long timeoutMs) throws InterruptedException {
+        final long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while (mExpressBytes + mBulkBytes > maxQueuedBytes) {
+            final long remainingMs = (deadline - System.nanoTime()) / 1000000L;
+            if (remainingMs <= 0) {
+                return false;
+            }
+            wait(remainingMs);
+        }
+        return true;
+    }
+
+    synchronized int getQueuedBytes() {
+        return mExpressBytes + mBulkBytes;
+    }
+
+    int getBulkCapacity() {
+        return mBulkCapacity;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.os.ParcelFileDescriptor;
+
+/**
+ * Ring of received data in a memory mapped file that bound clients map read
+ * only. The service writes every chunk once and clients read it from their
+ * own mapping, so no data is copied through Binder.
+ *
+ * All values are little endian. The file starts with a header:
+ *
+ * <pre>
+ *  0 int  magic 0x41524455 ("ARDU")
+ *  4 int  version
+ *  8 int  capacity of the data area in bytes
+ * 16 long write position, bytes written since the ring was created
+ * 24 long tail position, start of the oldest record not yet overwritten
+ * 32 long sequence number of the newest record
+ * </pre>
+ *
+ * followed by the data area at {@link #HEADER_SIZE}. A position p is found
+ * at data area offset p % capacity. Records are 8 byte aligned:
+ *
+ * <pre>
+ *  0 int  payload length, or -1 for padding up to the end of the data area
+ *  4 int  device id
+ *  8 long sequence number, increasing by one per record
+ * 16 long System.nanoTime() when the data was received
+ * 24      payload
+ * </pre>
+ *
+ * The write position is updated after the record is complete. A reader is
+ * only notified after that, through Binder, which orders the memory accesses.
+ * The tail is moved before a record is overwritten, so a reader that finds
+ * the tail past its own position after copying a record must discard it.
+ */
+class SharedDataRing {
+
+    static final int MAGIC = 0x41524455;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_HEADER_SIZE = 24;
+
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int WRITE_POSITION_OFFSET = 16;
+    private static final int TAIL_POSITION_OFFSET = 24;
+    private static final int SEQUENCE_OFFSET = 32;
+
+    private final File mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mCapacity;
+    private long mWritePosition;
+    private long mTailPosition;
+    private long mSequence;
+
+    /**
+     * Creates or truncates the file and maps it.
+     *
+     * @param capacity size of the data area, a multiple of 8
+     */
+    SharedDataRing(File file, int capacity) throws IOException {
+        mFile = file;
+        mCapacity = capacity;
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            randomAccessFile.setLength(HEADER_SIZE + capacity);
+            mBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + capacity);
+        } finally {
+            randomAccessFile.close();
+        }
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, VERSION);
+        mBuffer.putInt(CAPACITY_OFFSET, capacity);
+        mBuffer.putLong(WRITE_POSITION_OFFSET, 0);
+        mBuffer.putLong(TAIL_POSITION_OFFSET, 0);
+        mBuffer.putLong(SEQUENCE_OFFSET, 0);
+    }
+
+    /**
+     * @return a new read only descriptor for clients
+     */
+    ParcelFileDescriptor openForClient() throws IOException {
+        return ParcelFileDescriptor.open(mFile, ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
+    long getWritePosition() {
+        return mWritePosition;
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private int recordSizeAt(long position) {
+        final int offset = (int) (position % mCapacity);
+        final int length = mBuffer.getInt(HEADER_SIZE + offset);
+        return length < 0 ? mCapacity - offset : align(RECORD_HEADER_SIZE + length);
+    }
+
+    /**
+     * Moves the tail past every record that the next size bytes would overwrite.
+     */
+    private void makeRoom(int size) {
+        while (mWritePosition + size - mTailPosition > mCapacity) {
+            mTailPosition += recordSizeAt(mTailPosition);
+        }
+        mBuffer.putLong(TAIL_POSITION_OFFSET, mTailPosition);
+    }
+
+    /**
+     * Appends one record. Only one thread may append.
+     *
+     * @return sequence number of the record, or -1 if it can never fit
+     */
+    long append(int deviceId, byte[] src, int off, int len, long timestampNanos) {
+        final int size = align(RECORD_HEADER_SIZE + len);
+        if (size > mCapacity / 2) {
+            return -1;
+        }
+
+        final int spaceToEnd = mCapacity - (int) (mWritePosition % mCapacity);
+        if (spaceToEnd < size) {
+            makeRoom(spaceToEnd);
+            mBuffer.putInt(HEADER_SIZE + mCapacity - spaceToEnd, -1);
+            mWritePosition += spaceToEnd;
+        }
+        makeRoom(size);
+
+        final int offset = HEADER_SIZE + (int) (mWritePosition % mCapacity);
+        mSequence++;
+        mBuffer.putInt(offset, len);
+        mBuffer.putInt(offset + 4, deviceId);
+        mBuffer.putLong(offset + 8, mSequence);
+        mBuffer.putLong(offset + 16, timestampNanos);
+        mBuffer.position(offset + RECORD_HEADER_SIZE);
+        mBuffer.put(src, off, len);
+
+        mWritePosition += size;
+        mBuffer.putLong(SEQUENCE_OFFSET, mSequence);
+        mBuffer.putLong(WRITE_POSITION_OFFSET, mWritePosition);
+        return mSequence;
+    }
+
+    /**
+     * Client side of the ring. Clients outside this app can copy this class.
+     */
+    static class Reader {
+
+        interface RecordListener {
+            void onRecord(int deviceId, long sequence, long timestampNanos, byte[] buffer, int length);
+        }
+
+        private final MappedByteBuffer mBuffer;
+        private final int mCapacity;
+        private long mReadPosition;
+        private byte[] mPayload = new byte[4096];
+        private long mLostRecords;
+        private long mLastSequence;
+
+        /**
+         * The mapping stays valid after the descriptor is closed by the caller.
+         */
+        Reader(ParcelFileDescriptor fileDescriptor, long startPosition) throws IOException {
+            FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            if (mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != VERSION) {
+                throw new IOException("Not a shared data ring");
+            }
+            mCapacity = mBuffer.getInt(CAPACITY_OFFSET);
+            mReadPosition = startPosition;
+        }
+
+        /**
+         * @return number of records overwritten before they could be read
+         */
+        long getLostRecords() {
+            return mLostRecords;
+        }
+
+        /**
+         * Reads every record up to writePosition, as received in the
+         * service's notification.
+         */
+        void readUpTo(long writePosition, RecordListener listener) {
+            while (mReadPosition < writePosition) {
+                final long tail = mBuffer.getLong(TAIL_POSITION_OFFSET);
+                if (mReadPosition < tail) {
+                    mReadPosition = tail;
+                    continue;
+                }
+
+                final int offset = (int) (mReadPosition % mCapacity);
+                final int length = mBuffer.getInt(HEADER_SIZE + offset);
+                if (length < 0) {
+                    mReadPosition += mCapacity - offset;
+                    continue;
+                }
+                if (length > mCapacity / 2) {
+                    // Being overwritten, read the tail again.
+                    final long newTail = mBuffer.getLong(TAIL_POSITION_OFFSET);
+                    mReadPosition = newTail > mReadPosition ? newTail : writePosition;
+                    continue;
+                }
+                if (length > mPayload.length) {
+                    mPayload = new byte[Math.max(length, mPayload.length * 2)];
+                }
+                final int deviceId = mBuffer.getInt(HEADER_SIZE + offset + 4);
+                final long sequence = mBuffer.getLong(HEADER_SIZE + offset + 8);
+                final long timestamp = mBuffer.getLong(HEADER_SIZE + offset + 16);
+                mBuffer.position(HEADER_SIZE + offset + RECORD_HEADER_SIZE);
+                mBuffer.get(mPayload, 0, length);
+
+                if (mBuffer.getLong(TAIL_POSITION_OFFSET) > mReadPosition) {
+                    // Overwritten while copying.
+                    continue;
+                }
+                if (mLastSequence != 0 && sequence != mLastSequence + 1) {
+                    mLostRecords += sequence - mLastSequence - 1;
+                }
+                mLastSequence = sequence;
+                mReadPosition += align(RECORD_HEADER_SIZE + length);
+                listener.onRecord(deviceId, sequence, timestamp, mPayload, length);
+            }
+        }
+    }
+}
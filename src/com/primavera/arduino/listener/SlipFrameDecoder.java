@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * SLIP framing as described in RFC 1055. Empty frames, which senders use to
+ * flush line noise, are ignored.
+ */
+class SlipFrameDecoder extends FrameDecoder {
+
+    private static final int END = 0xC0;
+    private static final int ESC = 0xDB;
+    private static final int ESC_END = 0xDC;
+    private static final int ESC_ESC = 0xDD;
+
+    private boolean mEscaped;
+
+    @Override
+    void decode(byte[] src, int off, int len, long timestampNanos, FrameSink sink) {
+        final int end = off + len;
+        for (int i = off; i < end; i++) {
+            final int b = src[i] & 0xFF;
+            if (b == END) {
+                if (mEscaped) {
+                    dropFrame();
+                }
+                if (mFrameLength > 0 && !isDiscarding()) {
+                    sink.onFrame(mFrame, 0, mFrameLength, timestampNanos);
+                }
+                resetFrame();
+                mEscaped = false;
+            } else if (mEscaped) {
+                mEscaped = false;
+                if (b == ESC_END) {
+                    put((byte) END);
+                } else if (b == ESC_ESC) {
+                    put((byte) ESC);
+                } else {
+                    dropFrame();
+                }
+            } else if (b == ESC) {
+                mEscaped = true;
+            } else {
+                put((byte) b);
+            }
+        }
+    }
+}
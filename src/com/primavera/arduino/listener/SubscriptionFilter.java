@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+/**
+ * Precompiled test deciding whether a received frame goes to a subscriber.
+ * A frame matches when it passes every condition that is set: it starts with
+ * the prefix, contains the pattern and has the frame type as first byte.
+ * The pattern search uses a {@link HorspoolMatcher} built once.
+ */
+class SubscriptionFilter {
+
+    private final byte[] mPrefix;
+    private final HorspoolMatcher mPatternMatcher;
+    private final int mFrameType;
+
+    /**
+     * @param prefix required start of the frame, or null
+     * @param pattern byte sequence the frame must contain, or null
+     * @param frameType required first byte of the frame, or -1
+     */
+    SubscriptionFilter(byte[] prefix, byte[] pattern, int frameType) {
+        mPrefix = prefix != null && prefix.length > 0 ? prefix.clone() : null;
+        mPatternMatcher = pattern != null && pattern.length > 0 ? new HorspoolMatcher(pattern) : null;
+        mFrameType = frameType < 0 ? -1 : frameType & 0xFF;
+    }
+
+    boolean matches(byte[] buffer, int offset, int length) {
+        if (mFrameType >= 0 && (length == 0 || (buffer[offset] & 0xFF) != mFrameType)) {
+            return false;
+        }
+        if (mPrefix != null) {
+            if (length < mPrefix.length) {
+                return false;
+            }
+            for (int i = 0; i < mPrefix.length; i++) {
+                if (buffer[offset + i] != mPrefix[i]) {
+                    return false;
+                }
+            }
+        }
+        return mPatternMatcher == null || mPatternMatcher.indexOf(buffer, offset, offset + length) >= 0;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Subscriptions of clients that only want some of the received frames.
+ * Every chunk of a batch is tested once per subscription on the dispatcher
+ * thread, and each subscriber gets a single delivery holding only the chunks
+ * that matched, or nothing at all.
+ */
+class SubscriptionRegistry {
+
+    interface Target {
+        /**
+         * @return false if the subscriber is gone and should be removed
+         */
+        boolean deliver(byte[] data, int[] chunkOffsets, long[] chunkTimestamps);
+    }
+
+    private static class Subscription {
+        final Object mKey;
+        final SubscriptionFilter mFilter;
+        final Target mTarget;
+
+        Subscription(Object key, SubscriptionFilter filter, Target target) {
+            mKey = key;
+            mFilter = filter;
+            mTarget = target;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<Subscription>();
+
+    // Used by the dispatcher thread only.
+    private final byte[] mMatchBuffer = new byte[BatchAssembler.MAX_BATCH_BYTES];
+    private final int[] mMatchOffsets = new int[BatchAssembler.MAX_BATCH_CHUNKS];
+    private final long[] mMatchTimestamps = new long[BatchAssembler.MAX_BATCH_CHUNKS];
+
+    /**
+     * Adds a subscription, replacing any earlier one with an equal key.
+     */
+    void subscribe(Object key, SubscriptionFilter filter, Target target) {
+        unsubscribe(key);
+        mSubscriptions.add(new Subscription(key, filter, target));
+    }
+
+    void unsubscribe(Object key) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mKey.equals(key)) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return mSubscriptions.isEmpty();
+    }
+
+    void dispatch(byte[] data, int[] chunkOffsets, long[] chunkTimestamps) {
+        for (Subscription subscription : mSubscriptions) {
+            int length = 0;
+            int count = 0;
+            for (int i = 0; i < chunkOffsets.length; i++) {
+                final int start = chunkOffsets[i];
+                final int end = i + 1 < chunkOffsets.length ? chunkOffsets[i + 1] : data.length;
+                if (subscription.mFilter.matches(data, start, end - start)) {
+                    mMatchOffsets[count] = length;
+                    mMatchTimestamps[count] = chunkTimestamps[i];
+                    count++;
+                    System.arraycopy(data, start, mMatchBuffer, length, end - start);
+                    length += end - start;
+                }
+            }
+            if (count == 0) {
+                continue;
+            }
+
+            byte[] matchedData = new byte[length];
+            int[] matchedOffsets = new int[count];
+            long[] matchedTimestamps = new long[count];
+            System.arraycopy(mMatchBuffer, 0, matchedData, 0, length);
+            System.arraycopy(mMatchOffsets, 0, matchedOffsets, 0, count);
+            System.arraycopy(mMatchTimestamps, 0, matchedTimestamps, 0, count);
+            if (!subscription.mTarget.deliver(matchedData, matchedOffsets, matchedTimestamps)) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+}
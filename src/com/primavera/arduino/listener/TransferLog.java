@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 Mathias Jeppsson
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.primavera.arduino.listener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * List of transferred data for the activity that keeps only the newest
+ * entries in memory. Older entries are appended to a file and read back a
+ * page at a time when scrolled to, so memory use does not grow with the
+ * length of the session.
+ *
+ * The data file holds one record per entry: int length, boolean ascii
+ * flag, long timestamp, bytes. The index file holds the long offset of every record.
+ */
+class TransferLog extends AbstractList<ByteArray> {
+
+    private final static String TAG = "TransferLog";
+    private final static boolean DEBUG = false;
+
+    private static final int MAX_ENTRIES_IN_MEMORY = 256;
+    private static final int PAGE_SIZE = 32;
+    private static final int MAX_CACHED_PAGES = 4;
+
+    private final File mDataFile;
+    private final File mIndexFile;
+    private RandomAccessFile mData;
+    private RandomAccessFile mIndex;
+    private int mSpilledCount;
+    private final ArrayList<ByteArray> mRecent = new ArrayList<ByteArray>();
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream();
+
+    private final LinkedHashMap<Integer, ByteArray[]> mPages =
+            new LinkedHashMap<Integer, ByteArray[]>(MAX_CACHED_PAGES + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, ByteArray[]> eldest) {
+                    return size() > MAX_CACHED_PAGES;
+                }
+            };
+
+    /**
+     * Starts an empty log in dir, replacing any left by an earlier session.
+     */
+    TransferLog(File dir, String name) {
+        mDataFile = new File(dir, name);
+        mIndexFile = new File(dir, name + ".idx");
+        try {
+            mData = new RandomAccessFile(mDataFile, "rw");
+            mData.setLength(0);
+            mIndex = new RandomAccessFile(mIndexFile, "rw");
+            mIndex.setLength(0);
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Opening transfer log failed, old entries will be dropped", e);
+            close();
+        }
+    }
+
+    @Override
+    public int size() {
+        return mSpilledCount + mRecent.size();
+    }
+
+    @Override
+    public ByteArray get(int location) {
+        if (location < 0 || location >= size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + size());
+        }
+        if (location >= mSpilledCount) {
+            return mRecent.get(location - mSpilledCount);
+        }
+        return loadPage(location / PAGE_SIZE)[location % PAGE_SIZE];
+    }
+
+    /**
+     * @return the newest entry, or null if the log is empty
+     */
+    ByteArray getLast() {
+        return mRecent.isEmpty() ? null : mRecent.get(mRecent.size() - 1);
+    }
+
+    @Override
+    public boolean add(ByteArray byteArray) {
+        if (!mRecent.isEmpty()) {
+            // No more data is added to the previous entry.
+            mRecent.get(mRecent.size() - 1).trim();
+        }
+        mRecent.add(byteArray);
+        if (mRecent.size() > MAX_ENTRIES_IN_MEMORY) {
+            spill(mRecent.remove(0));
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * @return position of the newest entry started at or before the
+     *         timestamp, or -1 if it is older than every entry
+     */
+    int findEntry(long timestampNanos) {
+        int low = 0;
+        int high = size() - 1;
+        int found = -1;
+        try {
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (getTimestamp(mid) <= timestampNanos) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Reading timestamps failed", e);
+            return -1;
+        }
+        return found;
+    }
+
+    /**
+     * Reads only the timestamp of spilled entries, without loading their page.
+     */
+    private long getTimestamp(int location) throws IOException {
+        if (location >= mSpilledCount) {
+            return mRecent.get(location - mSpilledCount).getTimestamp();
+        }
+        mIndex.seek(location * 8L);
+        mData.seek(mIndex.readLong() + 5);
+        return mData.readLong();
+    }
+
+    void toggleCoding(int location) {
+        final ByteArray byteArray = get(location);
+        byteArray.toggleCoding();
+        if (location < mSpilledCount && mData != null) {
+            try {
+                mIndex.seek(location * 8L);
+                mData.seek(mIndex.readLong() + 4);
+                mData.writeBoolean(byteArray.isShownInAscii());
+            } catch (IOException e) {
+                if (DEBUG) Log.e(TAG, "Updating entry " + location + " failed", e);
+            }
+        }
+    }
+
+    void close() {
+        try {
+            if (mData != null) {
+                mData.close();
+            }
+            if (mIndex != null) {
+                mIndex.close();
+            }
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Closing transfer log failed", e);
+        }
+        mData = null;
+        mIndex = null;
+        mDataFile.delete();
+        mIndexFile.delete();
+    }
+
+    private void spill(ByteArray byteArray) {
+        if (mData == null) {
+            // Without a file the list stays bounded by dropping the oldest entry.
+            return;
+        }
+        try {
+            mRecordBuffer.reset();
+            byteArray.writeTo(new DataOutputStream(mRecordBuffer));
+            final long offset = mData.length();
+            mData.seek(offset);
+            mData.write(mRecordBuffer.toByteArray());
+            mIndex.seek(mSpilledCount * 8L);
+            mIndex.writeLong(offset);
+            mPages.remove(mSpilledCount / PAGE_SIZE);
+            mSpilledCount++;
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Writing transfer log failed, old entries will be dropped", e);
+            close();
+            mSpilledCount = 0;
+            mPages.clear();
+        }
+    }
+
+    private ByteArray[] loadPage(int page) {
+        ByteArray[] entries = mPages.get(page);
+        if (entries != null) {
+            return entries;
+        }
+
+        final int first = page * PAGE_SIZE;
+        entries = new ByteArray[Math.min(PAGE_SIZE, mSpilledCount - first)];
+        try {
+            mIndex.seek(first * 8L);
+            mData.seek(mIndex.readLong());
+            for (int i = 0; i < entries.length; i++) {
+                entries[i] = ByteArray.readFrom(mData);
+            }
+        } catch (IOException e) {
+            if (DEBUG) Log.e(TAG, "Reading page " + page + " failed", e);
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] == null) {
+                    entries[i] = new ByteArray(0);
+                }
+            }
+        }
+        mPages.put(page, entries);
+        return entries;
+    }
+}